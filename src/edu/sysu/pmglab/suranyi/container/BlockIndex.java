@@ -0,0 +1,244 @@
+package edu.sysu.pmglab.suranyi.container;
+
+import org.tukaani.xz.CorruptedInputException;
+import org.tukaani.xz.UnsupportedOptionsException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * @Data        :2021/07/11
+ * @Author      :suranyi
+ * @Contact     :suranyi.sysu@gamil.com
+ * @Description :容器文件的数据块索引，记录每个数据块的压缩偏移量、压缩长度、解压偏移量及用户键 (染色体、起止位置)，
+ *               支持按解压偏移量及按键的二分查找。
+ *               文件格式 (小端序)：文件头 (魔数 4 字节 + 版本 4 字节)、依次排列的 LZMA 帧、索引 (每块 36 字节：
+ *               压缩偏移量 8、压缩长度 4、解压长度 4、染色体 4、起始位置 8、终止位置 8)、文件尾 (索引偏移量 8 + 块数 4 + 魔数 4)
+ */
+
+class BlockIndex {
+    /**
+     * 魔数 "LZCT"
+     */
+    static final int MAGIC = 0x54435A4C;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int ENTRY_SIZE = 36;
+    static final int TRAILER_SIZE = 16;
+
+    /**
+     * 无键数据块的染色体编号
+     */
+    static final int NO_CHROMOSOME = -1;
+
+    int size;
+    long[] compressedOffsets;
+    int[] compressedLengths;
+
+    /**
+     * 解压偏移量的前缀和，长度为 size + 1，第 i 块的解压长度为 uncompressedOffsets[i + 1] - uncompressedOffsets[i]
+     */
+    long[] uncompressedOffsets;
+    int[] chromosomes;
+    long[] starts;
+    long[] ends;
+
+    BlockIndex(int capacity) {
+        capacity = Math.max(capacity, 1);
+        this.compressedOffsets = new long[capacity];
+        this.compressedLengths = new int[capacity];
+        this.uncompressedOffsets = new long[capacity + 1];
+        this.chromosomes = new int[capacity];
+        this.starts = new long[capacity];
+        this.ends = new long[capacity];
+    }
+
+    /**
+     * 校验下一个数据块的键，有键的数据块需按 (染色体, 起始位置) 非递减的顺序追加，无键的数据块只能位于有键的数据块之前
+     */
+    void checkKey(int chromosome, long start, long end) {
+        if (chromosome < NO_CHROMOSOME) {
+            throw new IllegalArgumentException("chromosome must be non-negative: " + chromosome);
+        }
+
+        if (chromosome != NO_CHROMOSOME && start > end) {
+            throw new IllegalArgumentException("start > end: " + start + " > " + end);
+        }
+
+        if (this.size > 0 && compare(this.chromosomes[this.size - 1], this.starts[this.size - 1], chromosome, start) > 0) {
+            throw new IllegalArgumentException("blocks must be appended in (chromosome, start) order");
+        }
+    }
+
+    /**
+     * 追加一个数据块，其键需已通过 checkKey 校验
+     */
+    void add(long compressedOffset, int compressedLength, int uncompressedLength, int chromosome, long start, long end) {
+        if (this.size == this.compressedOffsets.length) {
+            int capacity = this.size << 1;
+            this.compressedOffsets = Arrays.copyOf(this.compressedOffsets, capacity);
+            this.compressedLengths = Arrays.copyOf(this.compressedLengths, capacity);
+            this.uncompressedOffsets = Arrays.copyOf(this.uncompressedOffsets, capacity + 1);
+            this.chromosomes = Arrays.copyOf(this.chromosomes, capacity);
+            this.starts = Arrays.copyOf(this.starts, capacity);
+            this.ends = Arrays.copyOf(this.ends, capacity);
+        }
+
+        this.compressedOffsets[this.size] = compressedOffset;
+        this.compressedLengths[this.size] = compressedLength;
+        this.uncompressedOffsets[this.size + 1] = this.uncompressedOffsets[this.size] + uncompressedLength;
+        this.chromosomes[this.size] = chromosome;
+        this.starts[this.size] = chromosome == NO_CHROMOSOME ? 0 : start;
+        this.ends[this.size] = chromosome == NO_CHROMOSOME ? 0 : end;
+        ++this.size;
+    }
+
+    int getUncompressedLength(int index) {
+        return (int) (this.uncompressedOffsets[index + 1] - this.uncompressedOffsets[index]);
+    }
+
+    /**
+     * 查找包含解压偏移量 offset 的数据块
+     * @return 数据块下标，offset 超出范围时返回 -1
+     */
+    int findBlock(long offset) {
+        if (offset < 0 || offset >= this.uncompressedOffsets[this.size]) {
+            return -1;
+        }
+
+        // 最后一个解压偏移量不超过 offset 的数据块 (空数据块与其后继的偏移量相同，因此不会被选中)
+        int low = 0;
+        int high = this.size - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (this.uncompressedOffsets[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * 查找 (染色体, 起始位置) 不超过 (chromosome, position) 的最后一个数据块
+     * @return 数据块下标，不存在时返回 -1
+     */
+    int floorBlock(int chromosome, long position) {
+        int low = -1;
+        int high = this.size - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (compare(this.chromosomes[mid], this.starts[mid], chromosome, position) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return low;
+    }
+
+    static int compare(int chromosome1, long position1, int chromosome2, long position2) {
+        int value = Integer.compare(chromosome1, chromosome2);
+        return value != 0 ? value : Long.compare(position1, position2);
+    }
+
+    /**
+     * 写入第 index 块的索引项
+     */
+    void writeEntry(int index, ByteBuffer buffer) {
+        buffer.putLong(this.compressedOffsets[index]);
+        buffer.putInt(this.compressedLengths[index]);
+        buffer.putInt(getUncompressedLength(index));
+        buffer.putInt(this.chromosomes[index]);
+        buffer.putLong(this.starts[index]);
+        buffer.putLong(this.ends[index]);
+    }
+
+    /**
+     * 读取一个索引项并追加
+     */
+    void readEntry(ByteBuffer buffer) {
+        long compressedOffset = buffer.getLong();
+        int compressedLength = buffer.getInt();
+        int uncompressedLength = buffer.getInt();
+        int chromosome = buffer.getInt();
+        long start = buffer.getLong();
+        long end = buffer.getLong();
+        if (compressedLength < 0 || uncompressedLength < 0) {
+            throw new IllegalArgumentException("negative block length in index");
+        }
+
+        add(compressedOffset, compressedLength, uncompressedLength, chromosome, start, end);
+    }
+
+    /**
+     * 从容器文件读取并校验块索引
+     */
+    static BlockIndex read(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < HEADER_SIZE + TRAILER_SIZE) {
+            throw new CorruptedInputException("Truncated container file");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0);
+        if (header.getInt(0) != MAGIC) {
+            throw new CorruptedInputException("Not a container file");
+        }
+
+        if (header.getInt(4) != VERSION) {
+            throw new UnsupportedOptionsException("Unsupported container version: " + header.getInt(4));
+        }
+
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, trailer, fileSize - TRAILER_SIZE);
+        long indexOffset = trailer.getLong(0);
+        int blockCount = trailer.getInt(8);
+        if (trailer.getInt(12) != MAGIC) {
+            throw new CorruptedInputException("Container file is incomplete (missing index)");
+        }
+
+        if (blockCount < 0 || blockCount > Integer.MAX_VALUE / ENTRY_SIZE || indexOffset < HEADER_SIZE
+                || indexOffset + (long) blockCount * ENTRY_SIZE + TRAILER_SIZE != fileSize) {
+            throw new CorruptedInputException("Corrupted container index");
+        }
+
+        BlockIndex index = new BlockIndex(blockCount);
+        ByteBuffer entries = ByteBuffer.allocate(blockCount * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, entries, indexOffset);
+        entries.flip();
+        try {
+            for (int i = 0; i < blockCount; i++) {
+                index.readEntry(entries);
+                if (index.compressedOffsets[i] < HEADER_SIZE || index.compressedOffsets[i] + index.compressedLengths[i] > indexOffset) {
+                    throw new CorruptedInputException("Corrupted container index");
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            throw new CorruptedInputException("Corrupted container index");
+        }
+
+        return index;
+    }
+
+    /**
+     * 从文件的 position 处定位读取，直至 buffer 填满
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException();
+            }
+
+            position += read;
+        }
+    }
+}
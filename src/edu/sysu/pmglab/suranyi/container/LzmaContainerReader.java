@@ -0,0 +1,203 @@
+package edu.sysu.pmglab.suranyi.container;
+
+import edu.sysu.pmglab.suranyi.lzma.LzmaCtxPool;
+import edu.sysu.pmglab.suranyi.lzma.LzmaDecompressCtx;
+import org.tukaani.xz.CorruptedInputException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @Data        :2021/07/11
+ * @Author      :suranyi
+ * @Contact     :suranyi.sysu@gamil.com
+ * @Description :容器文件读取器，打开时载入块索引，之后通过 FileChannel 的定位读取单独读取数据块，
+ *               并使用上下文池中的 LzmaDecompressCtx 解压。读取方法是线程安全的
+ */
+
+public class LzmaContainerReader implements Closeable {
+    final FileChannel channel;
+    final LzmaCtxPool ctxPool;
+    final BlockIndex index;
+
+    /**
+     * 构造器方法，使用独立的上下文池
+     * @param path 文件路径
+     */
+    public LzmaContainerReader(Path path) throws IOException {
+        this(path, new LzmaCtxPool());
+    }
+
+    /**
+     * 构造器方法
+     * @param path 文件路径
+     * @param ctxPool 上下文池，可与其他组件共享
+     */
+    public LzmaContainerReader(Path path, LzmaCtxPool ctxPool) throws IOException {
+        this.ctxPool = ctxPool;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.index = BlockIndex.read(this.channel);
+        } catch (IOException | RuntimeException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 获取数据块数
+     */
+    public int getBlockCount() {
+        return this.index.size;
+    }
+
+    /**
+     * 获取解压总长度
+     */
+    public long getUncompressedSize() {
+        return this.index.uncompressedOffsets[this.index.size];
+    }
+
+    /**
+     * 获取第 index 块在解压数据中的偏移量
+     */
+    public long getUncompressedOffset(int index) {
+        checkIndex(index);
+        return this.index.uncompressedOffsets[index];
+    }
+
+    /**
+     * 获取第 index 块的解压长度
+     */
+    public int getUncompressedLength(int index) {
+        checkIndex(index);
+        return this.index.getUncompressedLength(index);
+    }
+
+    /**
+     * 获取第 index 块的压缩帧长度
+     */
+    public int getCompressedLength(int index) {
+        checkIndex(index);
+        return this.index.compressedLengths[index];
+    }
+
+    /**
+     * 获取第 index 块的染色体编号，无键的数据块返回 -1
+     */
+    public int getChromosome(int index) {
+        checkIndex(index);
+        return this.index.chromosomes[index];
+    }
+
+    /**
+     * 获取第 index 块覆盖的起始位置
+     */
+    public long getStart(int index) {
+        checkIndex(index);
+        return this.index.starts[index];
+    }
+
+    /**
+     * 获取第 index 块覆盖的终止位置 (包含)
+     */
+    public long getEnd(int index) {
+        checkIndex(index);
+        return this.index.ends[index];
+    }
+
+    /**
+     * 查找包含解压偏移量 offset 的数据块，O(log n)
+     * @param offset 解压数据中的偏移量
+     * @return 数据块下标，offset 超出范围时返回 -1
+     */
+    public int findBlock(long offset) {
+        return this.index.findBlock(offset);
+    }
+
+    /**
+     * 查找覆盖 (chromosome, position) 的数据块，O(log n)。数据块区间重叠时返回起始位置不超过 position 的最后一个数据块
+     * @param chromosome 染色体编号
+     * @param position 位置
+     * @return 数据块下标，不存在覆盖该位置的数据块时返回 -1
+     */
+    public int findBlock(int chromosome, long position) {
+        int block = this.index.floorBlock(chromosome, position);
+        if (block == -1 || this.index.chromosomes[block] != chromosome || this.index.ends[block] < position) {
+            return -1;
+        }
+
+        return block;
+    }
+
+    /**
+     * 查找 (染色体, 起始位置) 不超过 (chromosome, position) 的最后一个数据块，O(log n)。
+     * 区间查询可从该数据块 (或其后继) 开始顺序扫描
+     * @param chromosome 染色体编号
+     * @param position 位置
+     * @return 数据块下标，不存在时返回 -1
+     */
+    public int floorBlock(int chromosome, long position) {
+        return this.index.floorBlock(chromosome, position);
+    }
+
+    /**
+     * 读取并解压第 index 块
+     * @param index 数据块下标
+     * @return 解压数据
+     */
+    public byte[] readBlock(int index) throws IOException {
+        byte[] dst = new byte[getUncompressedLength(index)];
+        readBlock(index, dst, 0);
+        return dst;
+    }
+
+    /**
+     * 读取并解压第 index 块
+     * @param index 数据块下标
+     * @param dst 目标数据容器，需至少容纳 getUncompressedLength(index) 字节
+     * @param dstOffset 目标数据容器偏移量
+     * @return 实际写入长度
+     */
+    public int readBlock(int index, byte[] dst, int dstOffset) throws IOException {
+        checkIndex(index);
+        int uncompressedLength = this.index.getUncompressedLength(index);
+        if (dstOffset < 0 || dstOffset > dst.length || dst.length - dstOffset < uncompressedLength) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        byte[] src = new byte[this.index.compressedLengths[index]];
+        BlockIndex.readFully(this.channel, ByteBuffer.wrap(src), this.index.compressedOffsets[index]);
+
+        LzmaDecompressCtx ctx = this.ctxPool.acquireDecompressCtx(uncompressedLength);
+        int length;
+        try {
+            length = ctx.decompress(src, 0, src.length, dst, dstOffset);
+        } catch (IOException | RuntimeException e) {
+            this.ctxPool.discard(ctx);
+            throw e;
+        }
+
+        this.ctxPool.release(ctx);
+        if (length != uncompressedLength) {
+            throw new CorruptedInputException("Block length does not match the container index");
+        }
+
+        return length;
+    }
+
+    void checkIndex(int index) {
+        if (index < 0 || index >= this.index.size) {
+            throw new IndexOutOfBoundsException("block index out of range: " + index);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
@@ -0,0 +1,196 @@
+package edu.sysu.pmglab.suranyi.container;
+
+import edu.sysu.pmglab.suranyi.lzma.LzmaCompressCtx;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @Data        :2021/07/11
+ * @Author      :suranyi
+ * @Contact     :suranyi.sysu@gamil.com
+ * @Description :容器文件写入器，将数据块逐个压缩为 LZMA 帧顺序追加，关闭时在文件末尾写入块索引。
+ *               文件由 LzmaContainerReader 按块随机读取，非线程安全
+ */
+
+public class LzmaContainerWriter implements Closeable {
+    final FileChannel channel;
+    final LzmaCompressCtx ctx;
+    final BlockIndex index = new BlockIndex(64);
+
+    /**
+     * 压缩输出缓冲区，按数据块大小扩容
+     */
+    byte[] buffer = new byte[0];
+    long position;
+    boolean closed;
+
+    /**
+     * 帧写入失败后文件尾部可能残留不完整的帧，此后拒绝写入，关闭时也不再写入索引及文件尾
+     */
+    boolean failed;
+
+    /**
+     * 构造器方法，创建 (或覆盖) 容器文件
+     * @param path 文件路径
+     * @param compressionLevel 压缩级别
+     */
+    public LzmaContainerWriter(Path path, int compressionLevel) throws IOException {
+        this(path, new LzmaCompressCtx(compressionLevel, true));
+    }
+
+    /**
+     * 构造器方法，创建 (或覆盖) 容器文件
+     * @param path 文件路径
+     * @param ctx 压缩上下文，需启用存储帧回退，且不使用预置字典 (读取器不绑定字典)
+     */
+    public LzmaContainerWriter(Path path, LzmaCompressCtx ctx) throws IOException {
+        if (!ctx.isStoredFallback()) {
+            throw new IllegalArgumentException("the compress ctx must enable storedFallback");
+        }
+
+        if (ctx.getPresetDict() != null) {
+            throw new IllegalArgumentException("preset dictionaries are not supported by the container");
+        }
+
+        this.ctx = ctx;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        ByteBuffer header = ByteBuffer.allocate(BlockIndex.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(BlockIndex.MAGIC);
+        header.putInt(BlockIndex.VERSION);
+        header.flip();
+        try {
+            write(header);
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 追加一个无键的数据块
+     * @param src 原数据
+     * @param srcOffset 源数据偏移量
+     * @param srcLength 源数据有效长度
+     * @return 数据块下标
+     */
+    public int write(byte[] src, int srcOffset, int srcLength) throws IOException {
+        return write(src, srcOffset, srcLength, BlockIndex.NO_CHROMOSOME, 0, 0);
+    }
+
+    /**
+     * 追加一个数据块，并记录其键。有键的数据块需按 (染色体, 起始位置) 非递减的顺序追加
+     * @param src 原数据
+     * @param srcOffset 源数据偏移量
+     * @param srcLength 源数据有效长度
+     * @param chromosome 染色体编号 (非负)
+     * @param start 数据块覆盖的起始位置
+     * @param end 数据块覆盖的终止位置 (包含)
+     * @return 数据块下标
+     */
+    public int write(byte[] src, int srcOffset, int srcLength, int chromosome, long start, long end) throws IOException {
+        if (this.closed) {
+            throw new IOException("the container writer is closed");
+        }
+
+        if (this.failed) {
+            throw new IOException("the container writer failed on a previous write");
+        }
+
+        this.index.checkKey(chromosome, start, end);
+        int capacity = LzmaCompressCtx.maxCompressedLength(srcLength);
+        if (this.buffer.length < capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        int length = this.ctx.compress(src, srcOffset, srcLength, this.buffer, 0);
+        long offset = this.position;
+        try {
+            write(ByteBuffer.wrap(this.buffer, 0, length));
+        } catch (IOException e) {
+            this.failed = true;
+            throw e;
+        }
+
+        // 帧完整写入后再登记索引
+        this.index.add(offset, length, srcLength, chromosome, start, end);
+        return this.index.size - 1;
+    }
+
+    /**
+     * 获取已写入的数据块数
+     */
+    public int getBlockCount() {
+        return this.index.size;
+    }
+
+    /**
+     * 获取已写入数据的解压总长度
+     */
+    public long getUncompressedSize() {
+        return this.index.uncompressedOffsets[this.index.size];
+    }
+
+    /**
+     * 获取已写入文件的长度 (不含尚未写入的索引)
+     */
+    public long getCompressedSize() {
+        return this.position;
+    }
+
+    /**
+     * 写入块索引及文件尾并关闭文件。此前有帧写入失败时只关闭文件，不写入索引及文件尾，读取器会将其视为不完整的文件
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+
+        this.closed = true;
+        if (this.failed) {
+            this.channel.close();
+            return;
+        }
+
+        try {
+            long indexOffset = this.position;
+            ByteBuffer buffer = ByteBuffer.allocate(BlockIndex.ENTRY_SIZE * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < this.index.size; i++) {
+                if (buffer.remaining() < BlockIndex.ENTRY_SIZE) {
+                    buffer.flip();
+                    write(buffer);
+                    buffer.clear();
+                }
+
+                this.index.writeEntry(i, buffer);
+            }
+
+            if (buffer.remaining() < BlockIndex.TRAILER_SIZE) {
+                buffer.flip();
+                write(buffer);
+                buffer.clear();
+            }
+
+            buffer.putLong(indexOffset);
+            buffer.putInt(this.index.size);
+            buffer.putInt(BlockIndex.MAGIC);
+            buffer.flip();
+            write(buffer);
+        } finally {
+            this.channel.close();
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            this.position += this.channel.write(buffer);
+        }
+    }
+}
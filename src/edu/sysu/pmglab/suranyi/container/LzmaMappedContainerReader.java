@@ -0,0 +1,182 @@
+package edu.sysu.pmglab.suranyi.container;
+
+import edu.sysu.pmglab.suranyi.lzma.LzmaCtxPool;
+import edu.sysu.pmglab.suranyi.lzma.LzmaDecompressCtx;
+import org.tukaani.xz.CorruptedInputException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * @Data        :2021/07/12
+ * @Author      :suranyi
+ * @Contact     :suranyi.sysu@gamil.com
+ * @Description :内存映射的容器文件读取器，将帧区域按帧边界切分为不超过 2 GB 的分块映射 (文件总大小不受限制)，
+ *               解压时 LzmaDecompressCtx 直接从映射区读取压缩帧，不经过系统调用及堆内存拷贝。读取方法是线程安全的。
+ *               映射区在读取器不可达后由 GC 释放
+ */
+
+public class LzmaMappedContainerReader extends LzmaContainerReader {
+    /**
+     * 单个映射分块的最大长度 (MappedByteBuffer 的容量上限)
+     */
+    public static final int MAX_CHUNK_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * 映射分块及其在文件中的起始偏移量，第 i 块所在的分块为 blockChunks[i]
+     */
+    final MappedByteBuffer[] chunks;
+    final long[] chunkOffsets;
+    final int[] blockChunks;
+
+    /**
+     * 构造器方法，使用独立的上下文池
+     * @param path 文件路径
+     */
+    public LzmaMappedContainerReader(Path path) throws IOException {
+        this(path, new LzmaCtxPool(), MAX_CHUNK_SIZE);
+    }
+
+    /**
+     * 构造器方法
+     * @param path 文件路径
+     * @param ctxPool 上下文池，可与其他组件共享
+     */
+    public LzmaMappedContainerReader(Path path, LzmaCtxPool ctxPool) throws IOException {
+        this(path, ctxPool, MAX_CHUNK_SIZE);
+    }
+
+    /**
+     * 构造器方法
+     * @param path 文件路径
+     * @param ctxPool 上下文池，可与其他组件共享
+     * @param maxChunkSize 单个映射分块的最大长度，较小的分块可减少连续虚拟地址空间的占用。不小于最长的压缩帧
+     */
+    public LzmaMappedContainerReader(Path path, LzmaCtxPool ctxPool, int maxChunkSize) throws IOException {
+        super(path, ctxPool);
+        if (maxChunkSize <= 0) {
+            this.channel.close();
+            throw new IllegalArgumentException("maxChunkSize must be positive");
+        }
+
+        // 按文件顺序贪心地将帧归入分块，帧不跨越分块边界
+        ArrayList<long[]> ranges = new ArrayList<>();
+        this.blockChunks = new int[this.index.size];
+        long chunkStart = 0;
+        long chunkEnd = 0;
+        for (int i = 0; i < this.index.size; i++) {
+            long start = this.index.compressedOffsets[i];
+            long end = start + this.index.compressedLengths[i];
+            if (end - start > maxChunkSize) {
+                this.channel.close();
+                throw new IllegalArgumentException("maxChunkSize is smaller than the frame of block " + i);
+            }
+
+            if (ranges.isEmpty() || start < chunkStart || end - chunkStart > maxChunkSize) {
+                if (!ranges.isEmpty()) {
+                    ranges.get(ranges.size() - 1)[1] = chunkEnd;
+                }
+
+                ranges.add(new long[]{start, end});
+                chunkStart = start;
+                chunkEnd = end;
+            } else {
+                chunkEnd = Math.max(chunkEnd, end);
+            }
+
+            this.blockChunks[i] = ranges.size() - 1;
+        }
+
+        if (!ranges.isEmpty()) {
+            ranges.get(ranges.size() - 1)[1] = chunkEnd;
+        }
+
+        this.chunks = new MappedByteBuffer[ranges.size()];
+        this.chunkOffsets = new long[ranges.size()];
+        try {
+            for (int i = 0; i < this.chunks.length; i++) {
+                long[] range = ranges.get(i);
+                this.chunkOffsets[i] = range[0];
+                this.chunks[i] = this.channel.map(FileChannel.MapMode.READ_ONLY, range[0], range[1] - range[0]);
+            }
+        } catch (IOException | RuntimeException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 获取映射分块数
+     */
+    public int getChunkCount() {
+        return this.chunks.length;
+    }
+
+    /**
+     * 获取第 index 块的压缩帧 (只读的映射区视图，不拷贝数据)
+     * @param index 数据块下标
+     * @return position 为 0、limit 为帧长度的只读缓冲区
+     */
+    public ByteBuffer getFrame(int index) {
+        return frame(index).slice();
+    }
+
+    /**
+     * 读取并解压第 index 块
+     * @param index 数据块下标
+     * @param dst 目标数据容器，从 position 开始写入，需至少剩余 getUncompressedLength(index) 字节，写入后 position 后移
+     * @return 实际写入长度
+     */
+    public int readBlock(int index, ByteBuffer dst) throws IOException {
+        checkIndex(index);
+        int uncompressedLength = this.index.getUncompressedLength(index);
+        if (dst.remaining() < uncompressedLength) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        ByteBuffer src = frame(index);
+        LzmaDecompressCtx ctx = this.ctxPool.acquireDecompressCtx(uncompressedLength);
+        int length;
+        try {
+            length = ctx.decompress(src, dst);
+        } catch (IOException | RuntimeException e) {
+            this.ctxPool.discard(ctx);
+            throw e;
+        }
+
+        this.ctxPool.release(ctx);
+        if (length != uncompressedLength) {
+            throw new CorruptedInputException("Block length does not match the container index");
+        }
+
+        return length;
+    }
+
+    @Override
+    public int readBlock(int index, byte[] dst, int dstOffset) throws IOException {
+        checkIndex(index);
+        int uncompressedLength = this.index.getUncompressedLength(index);
+        if (dstOffset < 0 || dstOffset > dst.length || dst.length - dstOffset < uncompressedLength) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        return readBlock(index, ByteBuffer.wrap(dst, dstOffset, uncompressedLength));
+    }
+
+    /**
+     * 第 index 块压缩帧的映射区视图 (独立的 position、limit，可并发使用)
+     */
+    private ByteBuffer frame(int index) {
+        checkIndex(index);
+        int chunk = this.blockChunks[index];
+        int start = (int) (this.index.compressedOffsets[index] - this.chunkOffsets[chunk]);
+        ByteBuffer frame = this.chunks[chunk].duplicate();
+        frame.limit(start + this.index.compressedLengths[index]);
+        frame.position(start);
+        return frame;
+    }
+}
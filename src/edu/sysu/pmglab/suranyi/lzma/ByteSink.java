@@ -0,0 +1,37 @@
+package edu.sysu.pmglab.suranyi.lzma;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * @Data        :2021/07/06
+ * @Author      :suranyi
+ * @Contact     :suranyi.sysu@gamil.com
+ * @Description :解压数据的接收端，解压器按固定大小的分块写入数据，无需容纳整个原数据的输出容器
+ */
+
+@FunctionalInterface
+public interface ByteSink {
+    /**
+     * 写入一个数据分块，buf 在方法返回后会被复用，需要保留数据时应复制
+     * @param buf 数据
+     * @param offset 数据偏移量
+     * @param length 数据长度
+     */
+    void write(byte[] buf, int offset, int length) throws IOException;
+
+    /**
+     * 将 WritableByteChannel 包装为 ByteSink，每个分块完整写入 channel 后返回
+     * @param channel 目标通道，例如 FileChannel
+     * @return 写入该通道的 ByteSink
+     */
+    static ByteSink of(WritableByteChannel channel) {
+        return (buf, offset, length) -> {
+            ByteBuffer buffer = ByteBuffer.wrap(buf, offset, length);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        };
+    }
+}
@@ -0,0 +1,152 @@
+package edu.sysu.pmglab.suranyi.lzma;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * @Data        :2021/07/09
+ * @Author      :suranyi
+ * @Contact     :suranyi.sysu@gamil.com
+ * @Description :可压缩性估计器，对数据块均匀抽样，根据样本的 0 阶熵及 4 字节匹配探测估计 LZMA 的压缩比。
+ *               估计器复用内部的样本与哈希表容器，非线程安全
+ */
+
+public class CompressibilityEstimator {
+    /**
+     * 抽样段数及每段长度，最多抽取 4 KiB 数据
+     */
+    static final int SAMPLE_COUNT = 32;
+    static final int SAMPLE_LENGTH = 128;
+    static final int SAMPLE_SIZE = SAMPLE_COUNT * SAMPLE_LENGTH;
+
+    /**
+     * 匹配探测使用的哈希表大小
+     */
+    static final int HASH_BITS = 12;
+
+    /**
+     * 匹配部分的估计编码代价 (相对原数据长度)
+     */
+    static final double MATCH_COST = 0.1;
+
+    final byte[] sample = new byte[SAMPLE_SIZE];
+    final int[] histogram = new int[256];
+    final int[] hashTable = new int[1 << HASH_BITS];
+
+    /**
+     * 估计数据块的压缩比
+     * @param src 原数据
+     * @param srcOffset 源数据偏移量
+     * @param srcLength 源数据有效长度
+     * @return 估计的压缩比 (压缩后长度 / 原长度)，约在 0 至 1 之间，空数据块返回 1
+     */
+    public double estimate(byte[] src, int srcOffset, int srcLength) {
+        if (srcOffset < 0 || srcLength < 0 || srcOffset + srcLength < 0 || srcOffset + srcLength > src.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        int size;
+        if (srcLength <= SAMPLE_SIZE) {
+            System.arraycopy(src, srcOffset, this.sample, 0, srcLength);
+            size = srcLength;
+        } else {
+            // 各段起点均匀分布，最后一段以数据块末尾结束
+            long stride = srcLength - SAMPLE_LENGTH;
+            for (int i = 0; i < SAMPLE_COUNT; i++) {
+                int start = (int) (stride * i / (SAMPLE_COUNT - 1));
+                System.arraycopy(src, srcOffset + start, this.sample, i * SAMPLE_LENGTH, SAMPLE_LENGTH);
+            }
+
+            size = SAMPLE_SIZE;
+        }
+
+        return analyze(size);
+    }
+
+    /**
+     * 估计数据块的压缩比，不改变 src 的 position
+     * @param src 原数据，估计 position 至 limit 之间的数据
+     * @return 估计的压缩比 (压缩后长度 / 原长度)
+     */
+    public double estimate(ByteBuffer src) {
+        int srcOffset = src.position();
+        int srcLength = src.remaining();
+        if (src.hasArray()) {
+            return estimate(src.array(), src.arrayOffset() + srcOffset, srcLength);
+        }
+
+        ByteBuffer view = src.duplicate();
+        int size;
+        if (srcLength <= SAMPLE_SIZE) {
+            view.get(this.sample, 0, srcLength);
+            size = srcLength;
+        } else {
+            long stride = srcLength - SAMPLE_LENGTH;
+            for (int i = 0; i < SAMPLE_COUNT; i++) {
+                view.position(srcOffset + (int) (stride * i / (SAMPLE_COUNT - 1)));
+                view.get(this.sample, i * SAMPLE_LENGTH, SAMPLE_LENGTH);
+            }
+
+            size = SAMPLE_SIZE;
+        }
+
+        return analyze(size);
+    }
+
+    /**
+     * 分析 sample[0, size)：贪心地查找 4 字节匹配 (可跨越抽样段)，匹配覆盖的字节按 MATCH_COST 计算，其余字节按样本的 0 阶熵计算
+     */
+    private double analyze(int size) {
+        if (size == 0) {
+            return 1;
+        }
+
+        Arrays.fill(this.histogram, 0);
+        Arrays.fill(this.hashTable, 0);
+        byte[] buf = this.sample;
+
+        int matched = 0;
+        int i = 0;
+        while (i < size) {
+            if (size - i < 4) {
+                this.histogram[buf[i++] & 0xFF]++;
+                continue;
+            }
+
+            int key = (buf[i] & 0xFF) | (buf[i + 1] & 0xFF) << 8 | (buf[i + 2] & 0xFF) << 16 | buf[i + 3] << 24;
+            int hash = (key * 0x9E3779B1) >>> (32 - HASH_BITS);
+            int candidate = this.hashTable[hash] - 1;
+            this.hashTable[hash] = i + 1;
+
+            if (candidate >= 0 && buf[candidate] == buf[i] && buf[candidate + 1] == buf[i + 1]
+                    && buf[candidate + 2] == buf[i + 2] && buf[candidate + 3] == buf[i + 3]) {
+                // 延伸匹配，匹配覆盖的字节不计入直方图
+                int length = 4;
+                while (i + length < size && buf[candidate + length] == buf[i + length]) {
+                    ++length;
+                }
+
+                matched += length;
+                i += length;
+            } else {
+                this.histogram[buf[i++] & 0xFF]++;
+            }
+        }
+
+        // 未被匹配覆盖的字节的 0 阶熵 (bits / byte)
+        int literals = size - matched;
+        double entropy = 0;
+        if (literals > 0) {
+            for (int count : this.histogram) {
+                if (count > 0) {
+                    double p = (double) count / literals;
+                    entropy -= p * Math.log(p);
+                }
+            }
+
+            entropy /= Math.log(2);
+        }
+
+        return (literals * entropy / 8 + matched * MATCH_COST) / size;
+    }
+}
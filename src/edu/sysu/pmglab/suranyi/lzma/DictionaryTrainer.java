@@ -0,0 +1,515 @@
+package edu.sysu.pmglab.suranyi.lzma;
+
+import org.tukaani.xz.UnsupportedOptionsException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * @Data        :2021/07/05
+ * @Author      :suranyi
+ * @Contact     :suranyi.sysu@gamil.com
+ * @Description :预置字典训练器，从样本数据块中挑选高频重复片段，生成可直接用于 LZMA2Options.setPresetDict
+ *               及 LzmaCompressCtx / LzmaDecompressCtx 的预置字典
+ */
+
+public class DictionaryTrainer {
+    /**
+     * 默认片段长度、d-mer 长度及频率表大小 (2 的幂)
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 256;
+    public static final int DEFAULT_DMER_SIZE = 8;
+    static final int TABLE_BITS = 22;
+
+    /**
+     * 挑选片段的最大轮数，每轮在频率表更新后重新为各分段挑选最优片段
+     */
+    static final int MAX_ROUNDS = 8;
+
+    final int dictSize;
+    final int segmentSize;
+    final int dmerSize;
+    final ForkJoinPool forkJoinPool;
+
+    /**
+     * 构造器方法，使用默认片段长度与公共 fork-join 线程池
+     * @param dictSize 字典大小上限
+     */
+    public DictionaryTrainer(int dictSize) {
+        this(dictSize, DEFAULT_SEGMENT_SIZE, DEFAULT_DMER_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 构造器方法
+     * @param dictSize 字典大小上限
+     * @param segmentSize 片段长度，字典由若干该长度的片段拼接而成
+     * @param dmerSize d-mer 长度 (4-8)，片段的价值为其包含的不同 d-mer 在样本中的出现频率之和
+     * @param forkJoinPool 执行统计与挑选任务的线程池
+     */
+    public DictionaryTrainer(int dictSize, int segmentSize, int dmerSize, ForkJoinPool forkJoinPool) {
+        if (dmerSize < 4 || dmerSize > 8) {
+            throw new IllegalArgumentException("dmerSize must be in the range [4, 8]");
+        }
+
+        if (segmentSize < dmerSize || dictSize < segmentSize) {
+            throw new IllegalArgumentException("segmentSize must be in the range [dmerSize, dictSize]");
+        }
+
+        this.dictSize = dictSize;
+        this.segmentSize = segmentSize;
+        this.dmerSize = dmerSize;
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    /**
+     * 训练预置字典：统计各 d-mer 出现的样本数，将样本按总长度等分为若干分段，
+     * 在每个分段中挑选价值最高的片段 (片段被选中后其包含的 d-mer 不再计分)。
+     * 片段按价值升序拼接，价值最高的片段位于字典末尾，因此字典的任意后缀也是一个可用的较小字典
+     * @param samples 样本数据块
+     * @return 预置字典，长度不超过 dictSize
+     */
+    public byte[] train(List<byte[]> samples) {
+        byte[][] sampleArray = samples.toArray(new byte[0][]);
+        long totalSize = 0;
+        for (byte[] sample : sampleArray) {
+            totalSize += sample.length;
+        }
+
+        // 样本总量不超过字典大小时，直接拼接所有样本
+        if (totalSize <= this.dictSize) {
+            byte[] dict = new byte[(int) totalSize];
+            int offset = 0;
+            for (byte[] sample : sampleArray) {
+                System.arraycopy(sample, 0, dict, offset, sample.length);
+                offset += sample.length;
+            }
+
+            return dict;
+        }
+
+        // 样本起始位置的前缀和，用于将全局位置映射到样本
+        long[] starts = new long[sampleArray.length + 1];
+        for (int i = 0; i < sampleArray.length; i++) {
+            starts[i + 1] = starts[i] + sampleArray[i].length;
+        }
+
+        int[] frequencies = count(sampleArray);
+
+        // 挑选片段时各线程的窗口计数表，各轮复用
+        ConcurrentHashMap<Thread, int[]> activeTables = new ConcurrentHashMap<>();
+
+        List<Segment> selected = new ArrayList<>();
+        int capacity = this.dictSize / this.segmentSize;
+        for (int round = 0; round < MAX_ROUNDS && selected.size() < capacity; round++) {
+            int epochs = capacity - selected.size();
+            long epochSize = Math.max(totalSize / epochs, this.segmentSize);
+            epochs = (int) ((totalSize + epochSize - 1) / epochSize);
+
+            // 并行挑选各分段的候选片段 (只读频率表)
+            Segment[] candidates = new Segment[epochs];
+            this.forkJoinPool.invoke(new SelectTask(sampleArray, starts, frequencies, activeTables, candidates, epochSize, 0, epochs,
+                    Math.max(1, epochs / (this.forkJoinPool.getParallelism() * 4))));
+
+            // 按分段顺序重新计分并接受，被选中片段的 d-mer 频率清零
+            int accepted = 0;
+            for (Segment candidate : candidates) {
+                if (candidate == null || selected.size() == capacity) {
+                    continue;
+                }
+
+                candidate.score = cover(sampleArray[candidate.sample], candidate.offset, frequencies);
+                if (candidate.score > 0) {
+                    selected.add(candidate);
+                    ++accepted;
+                }
+            }
+
+            if (accepted == 0) {
+                break;
+            }
+        }
+
+        // 价值高的片段靠近待压缩数据 (字典末尾)，匹配距离更短
+        selected.sort((a, b) -> Long.compare(a.score, b.score));
+        byte[] dict = new byte[selected.size() * this.segmentSize];
+        int offset = 0;
+        for (Segment segment : selected) {
+            System.arraycopy(sampleArray[segment.sample], segment.offset, dict, offset, this.segmentSize);
+            offset += this.segmentSize;
+        }
+
+        return dict;
+    }
+
+    /**
+     * 估计不同字典大小 (字典的后缀，从完整字典开始逐次减半，不小于 1 KiB) 下的压缩效果
+     * @param dict train 生成的预置字典
+     * @param samples 样本数据块，应使用未参与训练的样本
+     * @param compressionLevel 压缩级别
+     * @return 各字典大小的估计结果，按字典大小降序排列
+     */
+    public Estimate[] estimate(byte[] dict, List<byte[]> samples, int compressionLevel) throws IOException {
+        byte[][] sampleArray = samples.toArray(new byte[0][]);
+        List<Integer> sizes = new ArrayList<>();
+        sizes.add(0);
+        for (int size = dict.length; size >= 1024; size >>>= 1) {
+            sizes.add(size);
+        }
+
+        long[] lengths = new long[sizes.size()];
+        EstimateTask[] tasks = new EstimateTask[sizes.size()];
+        for (int i = 0; i < tasks.length; i++) {
+            int size = sizes.get(i);
+            tasks[i] = new EstimateTask(sampleArray, size == 0 ? null : Arrays.copyOfRange(dict, dict.length - size, dict.length),
+                    compressionLevel, lengths, i);
+        }
+
+        try {
+            this.forkJoinPool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        long originalLength = 0;
+        for (byte[] sample : sampleArray) {
+            originalLength += sample.length;
+        }
+
+        Estimate[] estimates = new Estimate[sizes.size() - 1];
+        for (int i = 1; i < sizes.size(); i++) {
+            estimates[i - 1] = new Estimate(sizes.get(i), originalLength, lengths[0], lengths[i]);
+        }
+
+        return estimates;
+    }
+
+    /**
+     * 并行统计各 d-mer 出现的样本数。统计表 (每张 16 MiB) 按线程分配，叶子任务复用所在线程的表，
+     * 因此峰值内存与线程数而不是任务数成正比；最后将各线程的频率表累加到其中一张表上
+     */
+    private int[] count(byte[][] samples) {
+        ConcurrentHashMap<Thread, int[][]> tables = new ConcurrentHashMap<>();
+        this.forkJoinPool.invoke(new CountTask(samples, tables, 0, samples.length,
+                Math.max(1, samples.length / (this.forkJoinPool.getParallelism() * 4))));
+
+        Iterator<int[][]> it = tables.values().iterator();
+        int[] frequencies = it.next()[0];
+        while (it.hasNext()) {
+            int[] other = it.next()[0];
+            for (int i = 0; i < frequencies.length; i++) {
+                frequencies[i] += other[i];
+            }
+        }
+
+        return frequencies;
+    }
+
+    /**
+     * d-mer 的哈希值，即频率表下标
+     */
+    private int hash(byte[] src, int offset) {
+        long value = 0;
+        for (int i = 0; i < this.dmerSize; i++) {
+            value = (value << 8) | (src[offset + i] & 0xFF);
+        }
+
+        return (int) ((value * 0x9E3779B97F4A7C15L) >>> (64 - TABLE_BITS));
+    }
+
+    /**
+     * 计算片段的实际价值 (不同 d-mer 的频率之和)，并将其 d-mer 的频率清零
+     */
+    private long cover(byte[] sample, int offset, int[] frequencies) {
+        long score = 0;
+        for (int i = offset, end = offset + this.segmentSize - this.dmerSize; i <= end; i++) {
+            int h = hash(sample, i);
+            score += frequencies[h];
+            frequencies[h] = 0;
+        }
+
+        return score;
+    }
+
+    /**
+     * 被选中的片段
+     */
+    static final class Segment {
+        final int sample;
+        final int offset;
+        long score;
+
+        Segment(int sample, int offset, long score) {
+            this.sample = sample;
+            this.offset = offset;
+            this.score = score;
+        }
+    }
+
+    /**
+     * 字典大小与压缩效果的估计结果
+     */
+    public static final class Estimate {
+        final int dictSize;
+        final long originalLength;
+        final long baselineLength;
+        final long compressedLength;
+
+        Estimate(int dictSize, long originalLength, long baselineLength, long compressedLength) {
+            this.dictSize = dictSize;
+            this.originalLength = originalLength;
+            this.baselineLength = baselineLength;
+            this.compressedLength = compressedLength;
+        }
+
+        public int getDictSize() {
+            return this.dictSize;
+        }
+
+        public long getOriginalLength() {
+            return this.originalLength;
+        }
+
+        /**
+         * 不使用预置字典时的压缩结果总长度
+         */
+        public long getBaselineLength() {
+            return this.baselineLength;
+        }
+
+        /**
+         * 使用该大小的预置字典时的压缩结果总长度
+         */
+        public long getCompressedLength() {
+            return this.compressedLength;
+        }
+
+        /**
+         * 压缩比提升倍数，即 baselineLength / compressedLength
+         */
+        public double getRatioGain() {
+            return this.compressedLength == 0 ? 1.0 : (double) this.baselineLength / this.compressedLength;
+        }
+
+        @Override
+        public String toString() {
+            return "Estimate{dictSize=" + this.dictSize + ", originalLength=" + this.originalLength
+                    + ", baselineLength=" + this.baselineLength + ", compressedLength=" + this.compressedLength
+                    + ", ratioGain=" + String.format("%.3f", getRatioGain()) + '}';
+        }
+    }
+
+    /**
+     * 统计各 d-mer 出现的样本数 (同一样本内重复出现只计一次)，计入所在线程的频率表 (tables 中每个线程一对频率表与标记表)
+     */
+    final class CountTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final byte[][] samples;
+        final ConcurrentHashMap<Thread, int[][]> tables;
+        final int start;
+        final int end;
+        final int grain;
+
+        CountTask(byte[][] samples, ConcurrentHashMap<Thread, int[][]> tables, int start, int end, int grain) {
+            this.samples = samples;
+            this.tables = tables;
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.end - this.start > this.grain) {
+                int mid = (this.start + this.end) >>> 1;
+                invokeAll(new CountTask(this.samples, this.tables, this.start, mid, this.grain),
+                        new CountTask(this.samples, this.tables, mid, this.end, this.grain));
+                return;
+            }
+
+            // 标记表记录 d-mer 最近出现的样本编号，每个样本只由一个线程统计，因此线程间不会混淆
+            int[][] table = this.tables.computeIfAbsent(Thread.currentThread(), thread -> new int[2][1 << TABLE_BITS]);
+            int[] frequencies = table[0];
+            int[] stamps = table[1];
+            for (int i = this.start; i < this.end; i++) {
+                byte[] sample = this.samples[i];
+                for (int j = 0, last = sample.length - dmerSize; j <= last; j++) {
+                    int h = hash(sample, j);
+                    if (stamps[h] != i + 1) {
+                        stamps[h] = i + 1;
+                        ++frequencies[h];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 在 [start, end) 分段中各自挑选价值最高的片段
+     */
+    final class SelectTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final byte[][] samples;
+        final long[] starts;
+        final int[] frequencies;
+        final ConcurrentHashMap<Thread, int[]> activeTables;
+        final Segment[] candidates;
+        final long epochSize;
+        final int start;
+        final int end;
+        final int grain;
+        final int[] window = new int[segmentSize - dmerSize + 1];
+
+        SelectTask(byte[][] samples, long[] starts, int[] frequencies, ConcurrentHashMap<Thread, int[]> activeTables,
+                   Segment[] candidates, long epochSize, int start, int end, int grain) {
+            this.samples = samples;
+            this.starts = starts;
+            this.frequencies = frequencies;
+            this.activeTables = activeTables;
+            this.candidates = candidates;
+            this.epochSize = epochSize;
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.end - this.start > this.grain) {
+                int mid = (this.start + this.end) >>> 1;
+                invokeAll(new SelectTask(this.samples, this.starts, this.frequencies, this.activeTables, this.candidates, this.epochSize, this.start, mid, this.grain),
+                        new SelectTask(this.samples, this.starts, this.frequencies, this.activeTables, this.candidates, this.epochSize, mid, this.end, this.grain));
+                return;
+            }
+
+            // 窗口内各 d-mer 的出现次数，每个样本区间处理结束后恢复为 0，因此同一线程的叶子任务 (及各轮) 共用一张表
+            int[] active = this.activeTables.computeIfAbsent(Thread.currentThread(), thread -> new int[1 << TABLE_BITS]);
+            for (int epoch = this.start; epoch < this.end; epoch++) {
+                long from = epoch * this.epochSize;
+                long to = Math.min(from + this.epochSize, this.starts[this.starts.length - 1]);
+                int sample = Arrays.binarySearch(this.starts, from);
+                sample = sample >= 0 ? sample : -sample - 2;
+
+                Segment best = null;
+                for (; sample < this.samples.length && this.starts[sample] < to; sample++) {
+                    int offset = (int) Math.max(from - this.starts[sample], 0);
+                    int limit = (int) Math.min(to - this.starts[sample], this.samples[sample].length);
+                    best = scan(this.samples[sample], sample, offset, limit, active, best);
+                }
+
+                this.candidates[epoch] = best;
+            }
+        }
+
+        /**
+         * 滑动窗口扫描起始位置在 [offset, limit) 内的片段
+         */
+        private Segment scan(byte[] src, int sample, int offset, int limit, int[] active, Segment best) {
+            int last = Math.min(limit, src.length - segmentSize + 1);
+            if (offset >= last) {
+                return best;
+            }
+
+            // 窗口内 d-mer 的哈希值 (环形缓冲区)，每个位置只计算一次哈希
+            int dmers = segmentSize - dmerSize + 1;
+            int[] window = this.window;
+            long score = 0;
+            for (int i = 0; i < dmers; i++) {
+                int h = hash(src, offset + i);
+                window[i] = h;
+                if (active[h]++ == 0) {
+                    score += this.frequencies[h];
+                }
+            }
+
+            for (int i = offset, slot = 0; ; i++) {
+                if (score > 0 && (best == null || score > best.score)) {
+                    best = new Segment(sample, i, score);
+                }
+
+                int h = window[slot];
+                if (--active[h] == 0) {
+                    score -= this.frequencies[h];
+                }
+
+                if (i + 1 == last) {
+                    // 恢复窗口计数
+                    for (int j = 1; j < dmers; j++) {
+                        --active[window[(slot + j) % dmers]];
+                    }
+
+                    break;
+                }
+
+                h = hash(src, i + dmers);
+                window[slot] = h;
+                if (active[h]++ == 0) {
+                    score += this.frequencies[h];
+                }
+
+                if (++slot == dmers) {
+                    slot = 0;
+                }
+            }
+
+            return best;
+        }
+    }
+
+    /**
+     * 使用指定预置字典压缩全部样本，统计压缩结果总长度
+     */
+    static final class EstimateTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final byte[][] samples;
+        final byte[] dict;
+        final int compressionLevel;
+        final long[] lengths;
+        final int index;
+
+        EstimateTask(byte[][] samples, byte[] dict, int compressionLevel, long[] lengths, int index) {
+            this.samples = samples;
+            this.dict = dict;
+            this.compressionLevel = compressionLevel;
+            this.lengths = lengths;
+            this.index = index;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                LzmaCompressCtx ctx = new LzmaCompressCtx(this.compressionLevel, true, this.dict);
+                byte[] dst = new byte[0];
+                long length = 0;
+                for (byte[] sample : this.samples) {
+                    int maxLength = LzmaCompressCtx.maxCompressedLength(sample.length);
+                    if (dst.length < maxLength) {
+                        dst = new byte[maxLength];
+                    }
+
+                    length += ctx.compress(sample, 0, sample.length, dst, 0);
+                }
+
+                ctx.shrink();
+                this.lengths[this.index] = length;
+            } catch (UnsupportedOptionsException e) {
+                throw new IllegalArgumentException(e);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,547 @@
+package edu.sysu.pmglab.suranyi.lzma;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.UnsupportedOptionsException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @Data        :2021/07/10
+ * @Author      :suranyi
+ * @Contact     :suranyi.sysu@gamil.com
+ * @Description :自适应压缩上下文，在一组由快至慢排列的编码参数 (阶梯) 之间逐块选择，使吞吐量满足目标。
+ *               每级的吞吐量与压缩比由最近数据块的指数加权平均估计，决策记录可作为监控指标读取。
+ *               输出为普通的 LZMA 帧，由 LzmaDecompressCtx 解压
+ */
+
+public class LzmaAdaptiveCompressCtx {
+    /**
+     * 吞吐量、压缩比的指数加权平均系数
+     */
+    static final double EWMA_ALPHA = 0.2;
+
+    /**
+     * 每隔 PROBE_INTERVAL 个数据块，尝试一次比当前选择更慢的一级，以更新其 (可能已过时的) 估计
+     */
+    static final int PROBE_INTERVAL = 64;
+
+    /**
+     * 更慢的一级压缩比至少改善该比例才会被选择
+     */
+    static final double MIN_RATIO_GAIN = 0.005;
+
+    /**
+     * 最近 IDLE_BLOCKS 个数据块都未使用的级别释放其压缩上下文 (大于 PROBE_INTERVAL，因此周期性尝试的一级不会被反复重建)
+     */
+    static final int IDLE_BLOCKS = 2 * PROBE_INTERVAL;
+
+    /**
+     * 决策记录保留的最近数据块数
+     */
+    static final int LOG_SIZE = 256;
+
+    final Rung[] rungs;
+    final boolean storedFallback;
+    final byte[] presetDict;
+
+    /**
+     * 尚无测量数据时使用的级别
+     */
+    final int initialRung;
+
+    /**
+     * 吞吐量目标 (字节/秒) 及单块延迟目标 (纳秒)，为 0 时不限制
+     */
+    double targetThroughput;
+    long targetLatency;
+
+    long blockCount;
+    final ArrayDeque<Decision> decisions = new ArrayDeque<>(LOG_SIZE);
+
+    /**
+     * 最近一次 select 的选择原因
+     */
+    Reason reason;
+
+    /**
+     * 选择原因
+     */
+    public enum Reason {
+        /**
+         * 满足目标的级别中压缩比最高的一级
+         */
+        TARGET,
+
+        /**
+         * 周期性尝试更慢的一级
+         */
+        PROBE,
+
+        /**
+         * 没有满足目标的级别，使用最快的一级
+         */
+        FASTEST
+    }
+
+    /**
+     * 阶梯中的一级：编码参数、按需创建的压缩上下文及测量数据
+     */
+    public static final class Rung {
+        final LZMA2Options options;
+        LzmaCompressCtx ctx;
+
+        /**
+         * 吞吐量 (字节/秒) 与压缩比的指数加权平均，未测量时为 0
+         */
+        double throughput;
+        double ratio;
+
+        long blockCount;
+        long srcBytes;
+        long dstBytes;
+        long nanos;
+
+        /**
+         * 最近一次使用该级的数据块序号
+         */
+        long lastBlock;
+
+        Rung(LZMA2Options options) {
+            this.options = options;
+        }
+
+        public LZMA2Options getOptions() {
+            return (LZMA2Options) this.options.clone();
+        }
+
+        /**
+         * 获取吞吐量估计 (MB/s)
+         */
+        public double getThroughput() {
+            return this.throughput / 1e6;
+        }
+
+        /**
+         * 获取压缩比估计 (压缩后长度 / 原长度)
+         */
+        public double getRatio() {
+            return this.ratio;
+        }
+
+        public long getBlockCount() {
+            return this.blockCount;
+        }
+
+        public long getSrcBytes() {
+            return this.srcBytes;
+        }
+
+        public long getDstBytes() {
+            return this.dstBytes;
+        }
+
+        public long getNanos() {
+            return this.nanos;
+        }
+
+        boolean isMeasured() {
+            return this.blockCount > 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Rung{mode=%d, mf=%d, niceLen=%d, depth=%d, blocks=%d, throughput=%.1fMB/s, ratio=%.4f}",
+                    this.options.getMode(), this.options.getMatchFinder(), this.options.getNiceLen(), this.options.getDepthLimit(),
+                    this.blockCount, getThroughput(), this.ratio);
+        }
+    }
+
+    /**
+     * 单个数据块的决策记录
+     */
+    public static final class Decision {
+        final long block;
+        final int rung;
+        final Reason reason;
+        final int srcLength;
+        final int dstLength;
+        final long nanos;
+
+        Decision(long block, int rung, Reason reason, int srcLength, int dstLength, long nanos) {
+            this.block = block;
+            this.rung = rung;
+            this.reason = reason;
+            this.srcLength = srcLength;
+            this.dstLength = dstLength;
+            this.nanos = nanos;
+        }
+
+        /**
+         * 数据块序号 (从 0 开始)
+         */
+        public long getBlock() {
+            return this.block;
+        }
+
+        /**
+         * 使用的级别 (阶梯下标)
+         */
+        public int getRung() {
+            return this.rung;
+        }
+
+        public Reason getReason() {
+            return this.reason;
+        }
+
+        public int getSrcLength() {
+            return this.srcLength;
+        }
+
+        /**
+         * 压缩结果长度，目标容器空间不足时为 -1
+         */
+        public int getDstLength() {
+            return this.dstLength;
+        }
+
+        /**
+         * 压缩耗时 (纳秒)
+         */
+        public long getNanos() {
+            return this.nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Decision{block=" + this.block + ", rung=" + this.rung + ", reason=" + this.reason + ", srcLength=" + this.srcLength
+                    + ", dstLength=" + this.dstLength + ", nanos=" + this.nanos + "}";
+        }
+    }
+
+    /**
+     * 构造器方法，使用压缩级别 0-9 组成的阶梯 (0-3 为 HC4 快速模式，4-9 为 BT4 标准模式，nice length 与搜索深度逐级增加)，
+     * 尚无测量数据时从默认级别 6 开始
+     * @param targetThroughput 吞吐量目标 (MB/s)，为 0 时总是使用最慢 (压缩比最高) 的一级
+     */
+    public LzmaAdaptiveCompressCtx(double targetThroughput) throws UnsupportedOptionsException {
+        this(getPresetLadder(), LZMA2Options.PRESET_DEFAULT, false, null);
+        setTargetThroughput(targetThroughput);
+    }
+
+    /**
+     * 构造器方法
+     * @param ladder 编码参数阶梯 (构造时复制)，应按由快至慢 (压缩比由低至高) 排列
+     * @param initialRung 尚无测量数据时使用的级别
+     * @param storedFallback 压缩结果超过 maxCompressedLength 时是否改为写入存储帧
+     * @param presetDict 各级共享的预置字典，为 null 时不使用预置字典
+     */
+    public LzmaAdaptiveCompressCtx(LZMA2Options[] ladder, int initialRung, boolean storedFallback, byte[] presetDict) throws UnsupportedOptionsException {
+        if (ladder.length == 0) {
+            throw new IllegalArgumentException("ladder is empty");
+        }
+
+        if (initialRung < 0 || initialRung >= ladder.length) {
+            throw new IllegalArgumentException("initialRung is out of range: " + initialRung);
+        }
+
+        this.rungs = new Rung[ladder.length];
+        for (int i = 0; i < ladder.length; i++) {
+            if (ladder[i].getMode() == LZMA2Options.MODE_UNCOMPRESSED) {
+                throw new UnsupportedOptionsException("LZMA does not support MODE_UNCOMPRESSED");
+            }
+
+            this.rungs[i] = new Rung((LZMA2Options) ladder[i].clone());
+        }
+
+        this.initialRung = initialRung;
+        this.storedFallback = storedFallback;
+        this.presetDict = presetDict == null ? null : presetDict.clone();
+    }
+
+    /**
+     * 压缩级别 0-9 组成的阶梯
+     */
+    static LZMA2Options[] getPresetLadder() throws UnsupportedOptionsException {
+        LZMA2Options[] ladder = new LZMA2Options[LZMA2Options.PRESET_MAX + 1];
+        for (int i = 0; i < ladder.length; i++) {
+            ladder[i] = new LZMA2Options(i);
+        }
+
+        return ladder;
+    }
+
+    /**
+     * 设置吞吐量目标
+     * @param targetThroughput 吞吐量目标 (MB/s)，为 0 时不限制
+     */
+    public void setTargetThroughput(double targetThroughput) {
+        if (!(targetThroughput >= 0) || Double.isInfinite(targetThroughput)) {
+            throw new IllegalArgumentException("targetThroughput must be non-negative: " + targetThroughput);
+        }
+
+        this.targetThroughput = targetThroughput * 1e6;
+    }
+
+    /**
+     * 获取吞吐量目标 (MB/s)
+     */
+    public double getTargetThroughput() {
+        return this.targetThroughput / 1e6;
+    }
+
+    /**
+     * 设置单个数据块的延迟目标，与吞吐量目标同时设置时取二者中更严格者
+     * @param targetLatency 延迟目标 (纳秒)，为 0 时不限制
+     */
+    public void setTargetLatency(long targetLatency) {
+        if (targetLatency < 0) {
+            throw new IllegalArgumentException("targetLatency must be non-negative: " + targetLatency);
+        }
+
+        this.targetLatency = targetLatency;
+    }
+
+    /**
+     * 获取单个数据块的延迟目标 (纳秒)
+     */
+    public long getTargetLatency() {
+        return this.targetLatency;
+    }
+
+    /**
+     * 获取阶梯中各级的测量数据
+     */
+    public Rung[] getRungs() {
+        return this.rungs.clone();
+    }
+
+    /**
+     * 获取最近 (至多 256 个) 数据块的决策记录，按时间顺序排列
+     */
+    public List<Decision> getDecisionLog() {
+        return new ArrayList<>(this.decisions);
+    }
+
+    /**
+     * 获取已压缩的数据块数
+     */
+    public long getBlockCount() {
+        return this.blockCount;
+    }
+
+    /**
+     * 获取该上下文的近似内存占用，即各级已创建的压缩上下文的内存之和 (最近 IDLE_BLOCKS 个数据块未使用的级别会被释放)
+     * @return 内存占用 (KiB)
+     */
+    public int getMemoryUsage() {
+        int memoryUsage = 0;
+        for (Rung rung : this.rungs) {
+            if (rung.ctx != null) {
+                memoryUsage += rung.ctx.getMemoryUsage();
+            }
+        }
+
+        return memoryUsage;
+    }
+
+    /**
+     * 释放各级的压缩上下文，测量数据保留
+     */
+    public void shrink() {
+        for (Rung rung : this.rungs) {
+            if (rung.ctx != null) {
+                rung.ctx.shrink();
+                rung.ctx = null;
+            }
+        }
+    }
+
+    /**
+     * 压缩方法，输出格式与 LzmaCompressCtx.compress 相同
+     * @param src 原数据
+     * @param srcOffset 源数据偏移量
+     * @param srcLength 源数据有效长度
+     * @param dst 目标数据容器
+     * @param dstOffset 目标数据容器偏移量
+     * @return 实际写入长度，目标数据容器空间不足 (且无法回退为存储帧) 时返回 -1
+     */
+    public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) throws IOException {
+        long block = this.blockCount;
+        int index = select(srcLength);
+        Reason reason = this.reason;
+        LzmaCompressCtx ctx = getCtx(index, srcLength);
+
+        long start = System.nanoTime();
+        int length = ctx.compress(src, srcOffset, srcLength, dst, dstOffset);
+        record(block, index, reason, srcLength, length, System.nanoTime() - start);
+        trimIdle();
+        return length;
+    }
+
+    /**
+     * 压缩方法，支持堆内存与直接内存 (direct buffer)，输出格式与 LzmaCompressCtx.compress 相同
+     * @param src 原数据，压缩 position 至 limit 之间的数据，压缩后 position 移动至 limit
+     * @param dst 目标数据容器，从 position 开始写入，写入后 position 后移
+     * @return 实际写入长度
+     */
+    public int compress(ByteBuffer src, ByteBuffer dst) throws IOException {
+        long block = this.blockCount;
+        int srcLength = src.remaining();
+        int index = select(srcLength);
+        Reason reason = this.reason;
+        LzmaCompressCtx ctx = getCtx(index, srcLength);
+
+        long start = System.nanoTime();
+        int length = ctx.compress(src, dst);
+        record(block, index, reason, srcLength, length, System.nanoTime() - start);
+        trimIdle();
+        return length;
+    }
+
+    /**
+     * 为长度为 srcLength 的数据块选择级别：满足目标的级别中压缩比最高者 (压缩比改善不足 MIN_RATIO_GAIN 时取更快者)，
+     * 未测量级别的吞吐量由相邻已测量级别按每级减半推算
+     */
+    private int select(int srcLength) {
+        double required = this.targetThroughput;
+        if (this.targetLatency > 0) {
+            required = Math.max(required, srcLength * 1e9 / this.targetLatency);
+        }
+
+        boolean measured = false;
+        for (Rung rung : this.rungs) {
+            measured |= rung.isMeasured();
+        }
+
+        if (!measured) {
+            this.reason = Reason.TARGET;
+            return required == 0 ? this.rungs.length - 1 : this.initialRung;
+        }
+
+        int best = -1;
+        for (int i = 0; i < this.rungs.length; i++) {
+            if (estimateThroughput(i) < required) {
+                continue;
+            }
+
+            if (best == -1 || !this.rungs[i].isMeasured() || !this.rungs[best].isMeasured()
+                    || this.rungs[i].ratio < this.rungs[best].ratio * (1 - MIN_RATIO_GAIN)) {
+                best = i;
+            }
+        }
+
+        if (best == -1) {
+            this.reason = Reason.FASTEST;
+            return 0;
+        }
+
+        // 周期性尝试更慢的一级，数据特征变化后其估计可能已过时
+        if (best + 1 < this.rungs.length && (this.blockCount + 1) % PROBE_INTERVAL == 0) {
+            this.reason = Reason.PROBE;
+            return best + 1;
+        }
+
+        this.reason = Reason.TARGET;
+        return best;
+    }
+
+    /**
+     * 第 index 级的吞吐量估计 (字节/秒)
+     */
+    private double estimateThroughput(int index) {
+        if (this.rungs[index].isMeasured()) {
+            return this.rungs[index].throughput;
+        }
+
+        for (int i = index - 1; i >= 0; i--) {
+            if (this.rungs[i].isMeasured()) {
+                return Math.scalb(this.rungs[i].throughput, i - index);
+            }
+        }
+
+        for (int i = index + 1; i < this.rungs.length; i++) {
+            if (this.rungs[i].isMeasured()) {
+                return Math.scalb(this.rungs[i].throughput, i - index);
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * 获取第 index 级的压缩上下文，并在计时开始前创建长度为 srcLength 的数据块所用的编码器，
+     * 否则首次使用某级 (或某个字典大小分级) 的数据块的耗时包含编码器的分配，该级的吞吐量会被低估
+     */
+    private LzmaCompressCtx getCtx(int index, int srcLength) throws UnsupportedOptionsException {
+        Rung rung = this.rungs[index];
+        if (rung.ctx == null) {
+            rung.ctx = new LzmaCompressCtx(rung.options, this.storedFallback, this.presetDict);
+        }
+
+        rung.lastBlock = this.blockCount;
+        rung.ctx.prepare(srcLength);
+        return rung.ctx;
+    }
+
+    /**
+     * 释放最近 IDLE_BLOCKS 个数据块都未使用的级别的压缩上下文，测量数据保留
+     */
+    private void trimIdle() {
+        for (Rung rung : this.rungs) {
+            if (rung.ctx != null && this.blockCount - rung.lastBlock > IDLE_BLOCKS) {
+                rung.ctx.shrink();
+                rung.ctx = null;
+            }
+        }
+    }
+
+    /**
+     * 更新测量数据并写入决策记录，压缩失败 (-1) 的数据块只记录决策
+     */
+    private void record(long block, int index, Reason reason, int srcLength, int dstLength, long nanos) {
+        ++this.blockCount;
+        if (this.decisions.size() == LOG_SIZE) {
+            this.decisions.pollFirst();
+        }
+
+        this.decisions.addLast(new Decision(block, index, reason, srcLength, dstLength, nanos));
+
+        if (dstLength == -1 || srcLength == 0) {
+            return;
+        }
+
+        Rung rung = this.rungs[index];
+        double throughput = srcLength * 1e9 / Math.max(nanos, 1);
+        double ratio = (double) dstLength / srcLength;
+        if (rung.isMeasured()) {
+            rung.throughput += EWMA_ALPHA * (throughput - rung.throughput);
+            rung.ratio += EWMA_ALPHA * (ratio - rung.ratio);
+        } else {
+            rung.throughput = throughput;
+            rung.ratio = ratio;
+        }
+
+        ++rung.blockCount;
+        rung.srcBytes += srcLength;
+        rung.dstBytes += dstLength;
+        rung.nanos += nanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("LzmaAdaptiveCompressCtx{targetThroughput=")
+                .append(String.format("%.1fMB/s", getTargetThroughput()))
+                .append(", targetLatency=").append(this.targetLatency)
+                .append("ns, blocks=").append(this.blockCount);
+        for (int i = 0; i < this.rungs.length; i++) {
+            builder.append(", ").append(i).append('=').append(this.rungs[i]);
+        }
+
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,167 @@
+package edu.sysu.pmglab.suranyi.lzma;
+
+import org.tukaani.xz.LZMA2Options;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * @Data        :2021/07/02
+ * @Author      :suranyi
+ * @Contact     :suranyi.sysu@gamil.com
+ * @Description :LZMA 批量压缩、解压上下文，将相互独立的数据块分派到 fork-join 线程池中并行处理
+ */
+
+public class LzmaBatchCtx {
+    final int compressionLevel;
+    final LzmaCtxPool ctxPool;
+    final ForkJoinPool forkJoinPool;
+
+    /**
+     * 构造器方法，使用公共 fork-join 线程池及独立的上下文池
+     * @param compressionLevel 压缩级别
+     */
+    public LzmaBatchCtx(int compressionLevel) {
+        this(compressionLevel, new LzmaCtxPool(), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 构造器方法
+     * @param compressionLevel 压缩级别
+     * @param ctxPool 上下文池，可与其他组件共享
+     * @param forkJoinPool 执行压缩、解压任务的线程池
+     */
+    public LzmaBatchCtx(int compressionLevel, LzmaCtxPool ctxPool, ForkJoinPool forkJoinPool) {
+        if (compressionLevel < LZMA2Options.PRESET_MIN || compressionLevel > LZMA2Options.PRESET_MAX) {
+            throw new IllegalArgumentException("LZMA only supports compression levels " + LZMA2Options.PRESET_MIN + " to " + LZMA2Options.PRESET_MAX);
+        }
+
+        this.compressionLevel = compressionLevel;
+        this.ctxPool = ctxPool;
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    /**
+     * 批量压缩，每个数据块的 dst 容器需要预留足够的空间
+     * @param blocks 数据块
+     * @return 长度表，第 i 个元素为第 i 个数据块实际写入 dst 的长度，dst 空间不足时为 -1
+     */
+    public int[] compressAll(List<LzmaBlock> blocks) throws IOException {
+        return invoke(blocks, true);
+    }
+
+    /**
+     * 批量解压，每个数据块的 src 为 compressAll 产生的压缩数据
+     * @param blocks 数据块
+     * @return 长度表，第 i 个元素为第 i 个数据块实际写入 dst 的长度
+     */
+    public int[] decompressAll(List<LzmaBlock> blocks) throws IOException {
+        return invoke(blocks, false);
+    }
+
+    public LzmaCtxPool getCtxPool() {
+        return this.ctxPool;
+    }
+
+    private int[] invoke(List<LzmaBlock> blocks, boolean compress) throws IOException {
+        LzmaBlock[] blockArray = blocks.toArray(new LzmaBlock[0]);
+        int[] lengths = new int[blockArray.length];
+
+        if (blockArray.length == 0) {
+            return lengths;
+        }
+
+        // 每个叶子任务借用一次上下文，任务粒度为每个线程约 4 个任务，以均衡各数据块大小的差异
+        int grain = Math.max(1, blockArray.length / (this.forkJoinPool.getParallelism() * 4));
+
+        try {
+            this.forkJoinPool.invoke(new BatchTask(blockArray, lengths, 0, blockArray.length, grain, compress));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        return lengths;
+    }
+
+    /**
+     * 二分拆分的批处理任务
+     */
+    final class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final LzmaBlock[] blocks;
+        final int[] lengths;
+        final int start;
+        final int end;
+        final int grain;
+        final boolean compress;
+
+        BatchTask(LzmaBlock[] blocks, int[] lengths, int start, int end, int grain, boolean compress) {
+            this.blocks = blocks;
+            this.lengths = lengths;
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+            this.compress = compress;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.end - this.start > this.grain) {
+                int mid = (this.start + this.end) >>> 1;
+                invokeAll(new BatchTask(this.blocks, this.lengths, this.start, mid, this.grain, this.compress),
+                        new BatchTask(this.blocks, this.lengths, mid, this.end, this.grain, this.compress));
+                return;
+            }
+
+            try {
+                if (this.compress) {
+                    compressRange();
+                } else {
+                    decompressRange();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void compressRange() throws IOException {
+            LzmaCompressCtx ctx = ctxPool.acquireCompressCtx(compressionLevel);
+            try {
+                for (int i = this.start; i < this.end; i++) {
+                    LzmaBlock block = this.blocks[i];
+                    block.outputLength = ctx.compress(block.src, block.srcOffset, block.srcLength, block.dst, block.dstOffset);
+                    this.lengths[i] = block.outputLength;
+                }
+            } catch (Throwable e) {
+                // 压缩失败时上下文状态不再可信，丢弃前释放其编码器
+                ctxPool.discard(ctx);
+                throw e;
+            }
+
+            ctxPool.release(ctx);
+        }
+
+        private void decompressRange() throws IOException {
+            LzmaDecompressCtx ctx = ctxPool.acquireDecompressCtx(0);
+            try {
+                for (int i = this.start; i < this.end; i++) {
+                    LzmaBlock block = this.blocks[i];
+                    block.outputLength = ctx.decompress(block.src, block.srcOffset, block.srcLength, block.dst, block.dstOffset);
+                    this.lengths[i] = block.outputLength;
+                }
+            } catch (IOException e) {
+                // 解压上下文每次调用都重新解析帧头并重置状态，数据块损坏后仍可归还复用
+                ctxPool.release(ctx);
+                throw e;
+            } catch (Throwable e) {
+                ctxPool.discard(ctx);
+                throw e;
+            }
+
+            ctxPool.release(ctx);
+        }
+    }
+}
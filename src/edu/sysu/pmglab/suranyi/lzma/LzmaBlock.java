@@ -0,0 +1,79 @@
+package edu.sysu.pmglab.suranyi.lzma;
+
+/**
+ * @Data        :2021/07/02
+ * @Author      :suranyi
+ * @Contact     :suranyi.sysu@gamil.com
+ * @Description :批量压缩、解压的数据块，描述输入数据区与输出槽位
+ */
+
+public class LzmaBlock {
+    final byte[] src;
+    final int srcOffset;
+    final int srcLength;
+    final byte[] dst;
+    final int dstOffset;
+
+    /**
+     * 实际写入 dst 的长度，处理前为 -1
+     */
+    int outputLength = -1;
+
+    /**
+     * 构造器方法
+     * @param src 原数据
+     * @param srcOffset 源数据偏移量
+     * @param srcLength 源数据有效长度
+     * @param dst 目标数据容器 (输出槽位)
+     * @param dstOffset 目标数据容器偏移量
+     */
+    public LzmaBlock(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) {
+        if (srcOffset < 0 || srcLength < 0 || srcOffset + srcLength < 0 || srcOffset + srcLength > src.length
+                || dstOffset < 0 || dstOffset > dst.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        this.src = src;
+        this.srcOffset = srcOffset;
+        this.srcLength = srcLength;
+        this.dst = dst;
+        this.dstOffset = dstOffset;
+    }
+
+    /**
+     * 构造器方法，使用整个 src 与 dst
+     * @param src 原数据
+     * @param dst 目标数据容器 (输出槽位)
+     */
+    public LzmaBlock(byte[] src, byte[] dst) {
+        this(src, 0, src.length, dst, 0);
+    }
+
+    public byte[] getSrc() {
+        return this.src;
+    }
+
+    public int getSrcOffset() {
+        return this.srcOffset;
+    }
+
+    public int getSrcLength() {
+        return this.srcLength;
+    }
+
+    public byte[] getDst() {
+        return this.dst;
+    }
+
+    public int getDstOffset() {
+        return this.dstOffset;
+    }
+
+    /**
+     * 获取实际写入 dst 的长度
+     * @return 写入长度，尚未处理或压缩时 dst 空间不足时返回 -1
+     */
+    public int getOutputLength() {
+        return this.outputLength;
+    }
+}
@@ -1,14 +1,16 @@
 package edu.sysu.pmglab.suranyi.lzma;
 
-import edu.sysu.pmglab.suranyi.container.VolumeByteOutputStream;
 import org.tukaani.xz.ArrayCache;
 import org.tukaani.xz.LZMA2Options;
 import org.tukaani.xz.UnsupportedOptionsException;
 import org.tukaani.xz.lz.LZEncoder;
 import org.tukaani.xz.lzma.LZMAEncoder;
-import org.tukaani.xz.rangecoder.RangeEncoderToStream;
+import org.tukaani.xz.rangecoder.RangeEncoderToArray;
+import org.tukaani.xz.rangecoder.RangeEncoderToByteBuffer;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 /**
  * @Data        :2021/06/30
@@ -18,32 +20,310 @@ import java.io.IOException;
  */
 
 public class LzmaCompressCtx {
-    final VolumeByteOutputStream wrapper;
-    final RangeEncoderToStream rc;
+    /**
+     * 帧头长度 (属性字节 + 4 字节字典大小 + 8 字节原数据长度)
+     */
+    public static final int HEADER_SIZE = 13;
+
+    /**
+     * 存储帧的属性字节，合法的 LZMA 属性字节不超过 224
+     */
+    public static final int STORED_PROPS = 0xFF;
+
+    /**
+     * 字典大小分级的下限 (4 KiB)，即 LZMA2Options.DICT_SIZE_MIN
+     */
+    static final int DICT_SIZE_CLASS_MIN_BITS = 12;
+
+    /**
+     * 可压缩性预判的最小数据块长度，更小的数据块样本不足，直接压缩
+     */
+    static final int PROBE_MIN_LENGTH = 1024;
+
+    /**
+     * 使用自定义编码参数构造时的压缩级别。负数为合法的 (极速) 压缩级别，因此不能用 -1 表示
+     */
+    public static final int CUSTOM_LEVEL = Integer.MIN_VALUE;
+
+    final RangeEncoderToArray rc;
+    final RangeEncoderToByteBuffer bufferRc;
+    final LZMA2Options options;
     final int props;
-    final byte[] dictSizeByteArray;
-    final LZEncoder lz;
-    final LZMAEncoder lzma;
+    final int compressionLevel;
+    final boolean storedFallback;
+
+    /**
+     * 预置字典 (构造时复制，不可变)，无预置字典时为 null
+     */
+    final byte[] presetDict;
+
+    /**
+     * 按字典大小分级的编码器，第 i 个编码器的字典大小为 4 KiB << i (不超过 options 的字典大小)，首次使用时创建
+     */
+    final LZMAEncoder[] encoders;
 
     /**
-     * 构造器方法，LZMA 仅支持压缩级别在 0-9 之间
+     * 当前使用的编码器及其字典大小
+     */
+    LZEncoder lz;
+    LZMAEncoder lzma;
+    int dictSize;
+
+    /**
+     * 可压缩性预判：估计的压缩收益 (1 - 压缩比) 低于该阈值时直接写入存储帧，为 0 时不预判。估计器首次使用时创建
+     */
+    double storedThreshold;
+    CompressibilityEstimator estimator;
+
+    /**
+     * 构造器方法，LZMA 仅支持压缩级别在 -5 至 9 之间 (负数级别为极速模式，以压缩比换取至多约 2 倍的压缩速度)
      * @param compressionLevel 压缩级别
      */
     public LzmaCompressCtx(int compressionLevel) throws UnsupportedOptionsException {
-        LZMA2Options options = new LZMA2Options(compressionLevel);
-        this.wrapper = new VolumeByteOutputStream();
-        this.rc = new RangeEncoderToStream(this.wrapper);
-        this.props = (options.getPb() * 5 + options.getLp()) * 9 + options.getLc();
-        this.dictSizeByteArray = new byte[4];
-        int dictSize = options.getDictSize();
+        this(compressionLevel, false);
+    }
 
-        for (int i = 0; i < 4; ++i) {
-            this.dictSizeByteArray[i] = (byte) (dictSize & 0xFF);
-            dictSize >>>= 8;
+    /**
+     * 构造器方法，LZMA 仅支持压缩级别在 -5 至 9 之间 (负数级别为极速模式，以压缩比换取至多约 2 倍的压缩速度)
+     * @param compressionLevel 压缩级别
+     * @param storedFallback 压缩结果超过 maxCompressedLength 时是否改为写入存储帧 (原数据不压缩)。存储帧仅能由 LzmaDecompressCtx 解压
+     */
+    public LzmaCompressCtx(int compressionLevel, boolean storedFallback) throws UnsupportedOptionsException {
+        this(compressionLevel, storedFallback, null);
+    }
+
+    /**
+     * 构造器方法，绑定共享的预置字典。字典在每级编码器创建时写入窗口及匹配查找表一次，之后每次压缩结束后
+     * 恢复至写入字典后的状态，而不是重新写入字典。与字典内容相似的小数据块可获得更高的压缩比，
+     * 解压时需使用绑定相同字典的 LzmaDecompressCtx
+     * @param compressionLevel 压缩级别
+     * @param storedFallback 压缩结果超过 maxCompressedLength 时是否改为写入存储帧 (原数据不压缩)
+     * @param presetDict 预置字典，为 null 时不使用预置字典。超过字典大小时只使用其末尾部分，因此最有价值的内容应放在末尾
+     */
+    public LzmaCompressCtx(int compressionLevel, boolean storedFallback, byte[] presetDict) throws UnsupportedOptionsException {
+        this(new LZMA2Options(compressionLevel), compressionLevel, storedFallback, presetDict);
+    }
+
+    /**
+     * 构造器方法，使用自定义的编码参数 (模式、匹配查找器、nice length、搜索深度、lc/lp/pb、字典大小上限)，
+     * 用于压缩级别之间的细粒度调节。options 中的预置字典不生效，预置字典由 presetDict 参数指定
+     * @param options 编码参数 (构造时复制)，不支持 MODE_UNCOMPRESSED
+     * @param storedFallback 压缩结果超过 maxCompressedLength 时是否改为写入存储帧 (原数据不压缩)
+     * @param presetDict 预置字典，为 null 时不使用预置字典
+     */
+    public LzmaCompressCtx(LZMA2Options options, boolean storedFallback, byte[] presetDict) throws UnsupportedOptionsException {
+        this((LZMA2Options) options.clone(), CUSTOM_LEVEL, storedFallback, presetDict);
+    }
+
+    private LzmaCompressCtx(LZMA2Options options, int compressionLevel, boolean storedFallback, byte[] presetDict) throws UnsupportedOptionsException {
+        if (options.getMode() == LZMA2Options.MODE_UNCOMPRESSED) {
+            throw new UnsupportedOptionsException("LZMA does not support MODE_UNCOMPRESSED");
+        }
+
+        this.options = options;
+        this.rc = new RangeEncoderToArray();
+        this.bufferRc = new RangeEncoderToByteBuffer();
+        this.props = (this.options.getPb() * 5 + this.options.getLp()) * 9 + this.options.getLc();
+        this.encoders = new LZMAEncoder[getDictSizeClass(this.options.getDictSize()) + 1];
+        this.compressionLevel = compressionLevel;
+        this.storedFallback = storedFallback;
+        this.presetDict = presetDict == null ? null : presetDict.clone();
+    }
+
+    /**
+     * 获取压缩级别
+     * @return 构造该上下文时使用的压缩级别，使用自定义编码参数构造时返回 CUSTOM_LEVEL
+     */
+    public int getCompressionLevel() {
+        return this.compressionLevel;
+    }
+
+    /**
+     * 获取 LZMA 属性字节 (lc、lp、pb)，用于配置无帧头模式的解压器
+     */
+    public int getProps() {
+        return this.props;
+    }
+
+    /**
+     * 获取编码参数的副本
+     */
+    public LZMA2Options getOptions() {
+        return (LZMA2Options) this.options.clone();
+    }
+
+    /**
+     * 获取字典大小上限，用于配置无帧头模式的解压器
+     */
+    public int getDictSize() {
+        return this.options.getDictSize();
+    }
+
+    /**
+     * 获取预置字典的副本
+     * @return 预置字典，未使用预置字典时返回 null
+     */
+    public byte[] getPresetDict() {
+        return this.presetDict == null ? null : this.presetDict.clone();
+    }
+
+    /**
+     * 是否启用存储帧回退
+     */
+    public boolean isStoredFallback() {
+        return this.storedFallback;
+    }
+
+    /**
+     * 设置可压缩性预判的阈值。启用存储帧回退后，压缩前对不小于 1 KiB 的数据块抽样估计压缩比，
+     * 估计的压缩收益 (1 - 压缩比) 低于阈值时 (如已压缩或加密的数据) 跳过 LZMA 编码，直接写入存储帧；
+     * 无帧头模式下同样直接写入原数据
+     * @param storedThreshold 压缩收益阈值 (0 - 1)，例如 0.02 表示预计节省不足 2% 时写入存储帧，为 0 时关闭预判
+     */
+    public void setStoredThreshold(double storedThreshold) {
+        if (!(storedThreshold >= 0 && storedThreshold <= 1)) {
+            throw new IllegalArgumentException("storedThreshold must be in [0, 1]: " + storedThreshold);
+        }
+
+        this.storedThreshold = storedThreshold;
+    }
+
+    /**
+     * 获取可压缩性预判的阈值
+     */
+    public double getStoredThreshold() {
+        return this.storedThreshold;
+    }
+
+    /**
+     * 启用存储帧回退时，压缩结果的最大长度。按该值分配 dst 时压缩总能成功
+     * @param srcLength 源数据长度
+     * @return 压缩结果的最大长度
+     */
+    public static int maxCompressedLength(int srcLength) {
+        if (srcLength < 0 || srcLength > Integer.MAX_VALUE - HEADER_SIZE) {
+            throw new IllegalArgumentException("srcLength is out of range: " + srcLength);
         }
 
-        this.lzma = LZMAEncoder.getInstance(rc, options, ArrayCache.getDefaultCache());
+        return HEADER_SIZE + srcLength;
+    }
+
+    /**
+     * 获取该上下文的近似内存占用，即已创建的各级编码器的内存之和
+     * @return 内存占用 (KiB)
+     */
+    public int getMemoryUsage() {
+        int memoryUsage = 0;
+        for (int i = 0; i < this.encoders.length; i++) {
+            if (this.encoders[i] != null) {
+                memoryUsage += LZMAEncoder.getMemoryUsage(this.options.getMode(), getDictSize(i), 0, this.options.getMatchFinder(), this.options.isPipelined());
+                if (this.presetDict != null) {
+                    memoryUsage += LZEncoder.getPresetMemoryUsage(getDictSize(i), this.presetDict.length, this.options.getMatchFinder());
+                }
+            }
+        }
+
+        return memoryUsage;
+    }
+
+    /**
+     * 释放已创建的编码器，之后的压缩将按需重新创建
+     */
+    public void shrink() {
+        for (int i = 0; i < this.encoders.length; i++) {
+            if (this.encoders[i] != null) {
+                this.encoders[i].putArraysToCache(ArrayCache.getDefaultCache());
+                this.encoders[i] = null;
+            }
+        }
+
+        this.lz = null;
+        this.lzma = null;
+        this.dictSize = 0;
+    }
+
+    /**
+     * 按源数据长度选择编码器，字典大小为不小于源数据长度 (及预置字典长度之和) 的 2 的幂 (4 KiB 至 options 的字典大小之间)，
+     * 因此小数据块只使用与其大小相当的窗口及匹配查找表
+     * @param srcLength 源数据长度
+     */
+    private void select(int srcLength) {
+        int index = getDictSizeClass(this.presetDict == null ? srcLength : (int) Math.min((long) srcLength + this.presetDict.length, Integer.MAX_VALUE));
+        if (index >= this.encoders.length) {
+            index = this.encoders.length - 1;
+        }
+
+        if (this.encoders[index] == null) {
+            LZMA2Options classOptions = (LZMA2Options) this.options.clone();
+            try {
+                classOptions.setDictSize(getDictSize(index));
+            } catch (UnsupportedOptionsException e) {
+                throw new IllegalStateException(e);
+            }
+
+            this.encoders[index] = LZMAEncoder.getInstance(this.rc, classOptions, ArrayCache.getDefaultCache());
+            if (this.presetDict != null) {
+                // 写入预置字典一次，之后每次 reset 恢复至此状态
+                this.encoders[index].getLZEncoder().setResettablePresetDict(getDictSize(index), this.presetDict);
+            }
+        }
+
+        this.lzma = this.encoders[index];
         this.lz = this.lzma.getLZEncoder();
+        this.dictSize = getDictSize(index);
+    }
+
+    /**
+     * 预先创建压缩长度为 srcLength 的数据块所用的编码器，使之后的 compress 不包含编码器的分配时间
+     * @param srcLength 源数据长度
+     */
+    void prepare(int srcLength) {
+        select(srcLength);
+    }
+
+    /**
+     * 可压缩性预判，数据块预计无法获得 storedThreshold 以上的压缩收益时返回 true
+     */
+    private boolean isIncompressible(byte[] src, int srcOffset, int srcLength) {
+        if (this.storedThreshold == 0 || srcLength < PROBE_MIN_LENGTH) {
+            return false;
+        }
+
+        if (this.estimator == null) {
+            this.estimator = new CompressibilityEstimator();
+        }
+
+        return 1 - this.estimator.estimate(src, srcOffset, srcLength) < this.storedThreshold;
+    }
+
+    private boolean isIncompressible(ByteBuffer src) {
+        if (this.storedThreshold == 0 || src.remaining() < PROBE_MIN_LENGTH) {
+            return false;
+        }
+
+        if (this.estimator == null) {
+            this.estimator = new CompressibilityEstimator();
+        }
+
+        return 1 - this.estimator.estimate(src) < this.storedThreshold;
+    }
+
+    /**
+     * 第 index 级编码器的字典大小
+     */
+    private int getDictSize(int index) {
+        return Math.min(1 << (DICT_SIZE_CLASS_MIN_BITS + index), this.options.getDictSize());
+    }
+
+    /**
+     * 容纳 length 字节所需的字典大小分级
+     */
+    static int getDictSizeClass(int length) {
+        if (length <= 1 << DICT_SIZE_CLASS_MIN_BITS) {
+            return 0;
+        }
+
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - DICT_SIZE_CLASS_MIN_BITS;
     }
 
     /**
@@ -53,39 +333,260 @@ public class LzmaCompressCtx {
      * @param srcLength 源数据有效长度
      * @param dst 目标数据容器
      * @param dstOffset 目标数据容器偏移量
-     * @return 实际写入长度
+     * @return 实际写入长度，目标数据容器空间不足 (且无法回退为存储帧) 时返回 -1 (此时 dst 中的数据无效，上下文仍可继续使用)
      */
     public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) throws IOException {
-        // 将 dst 包装为 outputStream 对象
-        this.wrapper.wrap(dst, dstOffset);
-        this.wrapper.write(this.props);
-        this.wrapper.write(this.dictSizeByteArray);
+        if (srcOffset < 0 || srcLength < 0 || srcOffset + srcLength < 0 || srcOffset + srcLength > src.length
+                || dstOffset < 0 || dstOffset > dst.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        if (dst.length - dstOffset < HEADER_SIZE) {
+            return -1;
+        }
+
+        if (this.storedFallback && dst.length - dstOffset >= HEADER_SIZE + srcLength && isIncompressible(src, srcOffset, srcLength)) {
+            // 预计不可压缩，写入存储帧 (存储帧不使用字典，字典大小记为 0)
+            dst[dstOffset] = (byte) STORED_PROPS;
+            writeDictSize(dst, dstOffset + 1, 0);
+            writeLength(dst, dstOffset + 5, srcLength);
+            System.arraycopy(src, srcOffset, dst, dstOffset + HEADER_SIZE, srcLength);
+            return HEADER_SIZE + srcLength;
+        }
+
+        select(srcLength);
+        dst[dstOffset] = (byte) this.props;
+        writeDictSize(dst, dstOffset + 1, this.dictSize);
+        writeLength(dst, dstOffset + 5, srcLength);
+
+        // 直接写入 dst 数组，启用存储帧回退时压缩结果不超过存储帧长度
+        int limit = dst.length;
+        if (this.storedFallback && limit - dstOffset > HEADER_SIZE + srcLength) {
+            limit = dstOffset + HEADER_SIZE + srcLength;
+        }
+
+        int end = encode(src, srcOffset, srcLength, dst, dstOffset + HEADER_SIZE, limit);
+        if (end == -1) {
+            if (this.storedFallback && dst.length - dstOffset >= HEADER_SIZE + srcLength) {
+                // 写入存储帧
+                dst[dstOffset] = (byte) STORED_PROPS;
+                System.arraycopy(src, srcOffset, dst, dstOffset + HEADER_SIZE, srcLength);
+                return HEADER_SIZE + srcLength;
+            }
+
+            return -1;
+        }
+
+        return end - dstOffset;
+    }
+
+    /**
+     * 无帧头 (raw) 压缩方法，只写入区间编码数据。属性字节与字典大小由 getProps()、getDictSize() 获取，
+     * 并通过 LzmaDecompressCtx.setRawProperties 配置给解压器；原数据长度由调用者在帧外保存。
+     * 压缩结果不小于原数据长度时写入原数据 (存储帧)，解压器通过 "压缩长度 == 原数据长度" 识别存储帧
+     * @param src 原数据
+     * @param srcOffset 源数据偏移量
+     * @param srcLength 源数据有效长度
+     * @param dst 目标数据容器
+     * @param dstOffset 目标数据容器偏移量
+     * @return 实际写入长度 (不超过 srcLength)，目标数据容器空间不足时返回 -1
+     */
+    public int compressRaw(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) throws IOException {
+        if (srcOffset < 0 || srcLength < 0 || srcOffset + srcLength < 0 || srcOffset + srcLength > src.length
+                || dstOffset < 0 || dstOffset > dst.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        if (dst.length - dstOffset >= srcLength && isIncompressible(src, srcOffset, srcLength)) {
+            System.arraycopy(src, srcOffset, dst, dstOffset, srcLength);
+            return srcLength;
+        }
+
+        select(srcLength);
+
+        // 压缩结果需严格小于原数据长度，否则写入原数据
+        int end = encode(src, srcOffset, srcLength, dst, dstOffset, Math.min(dst.length, dstOffset + Math.max(srcLength - 1, 0)));
+        if (end == -1) {
+            if (dst.length - dstOffset >= srcLength) {
+                System.arraycopy(src, srcOffset, dst, dstOffset, srcLength);
+                return srcLength;
+            }
+
+            return -1;
+        }
+
+        return end - dstOffset;
+    }
+
+    /**
+     * 无帧头 (raw) 压缩方法，在 compressRaw 的结果前写入 varint 编码的原数据长度
+     * @param src 原数据
+     * @param srcOffset 源数据偏移量
+     * @param srcLength 源数据有效长度
+     * @param dst 目标数据容器
+     * @param dstOffset 目标数据容器偏移量
+     * @return 实际写入长度 (不超过 srcLength + 5)，目标数据容器空间不足时返回 -1
+     */
+    public int compressRawVarint(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) throws IOException {
+        if (dstOffset < 0 || dst.length - dstOffset < getVarintSize(srcLength)) {
+            return -1;
+        }
+
+        int offset = writeVarint(dst, dstOffset, srcLength);
+        int length = compressRaw(src, srcOffset, srcLength, dst, offset);
+        return length == -1 ? -1 : offset + length - dstOffset;
+    }
+
+    /**
+     * 将 src 压缩至 dst[dstOffset, limit)，不写入帧头
+     * @return 写入结束的位置，空间不足时返回 -1 (上下文仍可继续使用)
+     */
+    private int encode(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int limit) throws IOException {
+        this.rc.wrap(dst, dstOffset, limit);
+
+        try {
+            // 压缩数据，空间不足时提前终止
+            while (srcLength > 0 && !this.rc.isOverflow()) {
+                int used = this.lz.fillWindow(src, srcOffset, srcLength);
+                srcOffset += used;
+                srcLength -= used;
+                this.lzma.encodeForLZMA1();
+            }
+
+            // 关闭流
+            if (!this.rc.isOverflow()) {
+                this.lz.setFinishing();
+                this.lzma.encodeForLZMA1();
+                this.rc.finish();
+            }
+        } finally {
+            this.rc.reset();
+            this.lzma.reset();
+        }
+
+        return this.rc.isOverflow() ? -1 : this.rc.getPos();
+    }
+
+    /**
+     * 压缩方法，支持堆内存与直接内存 (direct buffer)，不经过中间数组
+     * @param src 原数据，压缩 position 至 limit 之间的数据，压缩后 position 移动至 limit
+     * @param dst 目标数据容器，从 position 开始写入，写入后 position 后移。剩余空间不足 (且无法回退为存储帧) 时抛出 BufferOverflowException
+     * @return 实际写入长度
+     */
+    public int compress(ByteBuffer src, ByteBuffer dst) throws IOException {
+        int srcStart = src.position();
+        int srcLength = src.remaining();
+        int dstStart = dst.position();
+        int dstLimit = dst.limit();
+        if (this.storedFallback && dstLimit - dstStart >= HEADER_SIZE + srcLength && isIncompressible(src)) {
+            // 预计不可压缩，写入存储帧
+            dst.put((byte) STORED_PROPS);
+            dst.putInt(0);
+            for (int i = 0; i < 8; ++i) {
+                dst.put((byte) ((long) srcLength >>> (8 * i)));
+            }
+
+            dst.put(src);
+            return HEADER_SIZE + srcLength;
+        }
+
+        select(srcLength);
+        dst.put((byte) this.props);
+        for (int i = 0; i < 4; ++i) {
+            dst.put((byte) (this.dictSize >>> (8 * i)));
+        }
 
         // 64 bit
-        this.wrapper.write(srcLength & 0xFF);
-        this.wrapper.write((srcLength >> 8) & 0xFF);
-        this.wrapper.write((srcLength >> 16) & 0xFF);
-        this.wrapper.write((srcLength >> 24) & 0xFF);
-        this.wrapper.write(0);
-        this.wrapper.write(0);
-        this.wrapper.write(0);
-        this.wrapper.write(0);
-
-        // 压缩数据
-        while (srcLength > 0) {
-            int used = this.lz.fillWindow(src, srcOffset, srcLength);
-            srcOffset += used;
-            srcLength -= used;
-            lzma.encodeForLZMA1();
-        }
-
-        // 关闭流
-        this.lz.setFinishing();
-        this.lzma.encodeForLZMA1();
-        this.rc.finish();
-        this.rc.reset();
-        this.lzma.reset();
-
-        return this.wrapper.size() - dstOffset;
+        for (int i = 0; i < 8; ++i) {
+            dst.put((byte) ((long) srcLength >>> (8 * i)));
+        }
+
+        // 启用存储帧回退时压缩结果不超过存储帧长度
+        boolean fallback = this.storedFallback && dstLimit - dstStart >= HEADER_SIZE + srcLength;
+        if (fallback) {
+            dst.limit(dstStart + HEADER_SIZE + srcLength);
+        }
+
+        // 压缩数据，结束后恢复数组编码器
+        this.lzma.setRangeEncoder(this.bufferRc);
+        this.bufferRc.wrap(dst);
+        try {
+            while (src.hasRemaining()) {
+                this.lz.fillWindow(src);
+                this.lzma.encodeForLZMA1();
+            }
+
+            this.lz.setFinishing();
+            this.lzma.encodeForLZMA1();
+            this.bufferRc.finish();
+        } catch (BufferOverflowException e) {
+            if (!fallback) {
+                throw e;
+            }
+
+            // 写入存储帧
+            dst.put(dstStart, (byte) STORED_PROPS);
+            dst.position(dstStart + HEADER_SIZE);
+            src.position(srcStart);
+            dst.put(src);
+        } finally {
+            this.bufferRc.reset();
+            this.bufferRc.wrap(null);
+            this.lzma.reset();
+            this.lzma.setRangeEncoder(this.rc);
+            dst.limit(dstLimit);
+        }
+
+        return dst.position() - dstStart;
+    }
+
+    /**
+     * varint (LEB128) 编码 value 所需的字节数
+     */
+    static int getVarintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            ++size;
+        }
+
+        return size;
+    }
+
+    /**
+     * 以 varint (LEB128) 编码写入 value
+     * @return 写入结束的位置
+     */
+    static int writeVarint(byte[] dst, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        dst[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * 以小端序写入 32 bit 字典大小
+     */
+    static void writeDictSize(byte[] dst, int offset, int dictSize) {
+        dst[offset] = (byte) dictSize;
+        dst[offset + 1] = (byte) (dictSize >>> 8);
+        dst[offset + 2] = (byte) (dictSize >>> 16);
+        dst[offset + 3] = (byte) (dictSize >>> 24);
+    }
+
+    /**
+     * 以小端序写入 64 bit 原数据长度
+     */
+    static void writeLength(byte[] dst, int offset, int length) {
+        dst[offset] = (byte) length;
+        dst[offset + 1] = (byte) (length >> 8);
+        dst[offset + 2] = (byte) (length >> 16);
+        dst[offset + 3] = (byte) (length >> 24);
+        dst[offset + 4] = 0;
+        dst[offset + 5] = 0;
+        dst[offset + 6] = 0;
+        dst[offset + 7] = 0;
     }
 }
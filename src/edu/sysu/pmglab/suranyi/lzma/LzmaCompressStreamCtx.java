@@ -1,6 +1,7 @@
 package edu.sysu.pmglab.suranyi.lzma;
 
 import edu.sysu.pmglab.suranyi.container.VolumeByteOutputStream;
+import org.tukaani.xz.ArrayCache;
 import org.tukaani.xz.LZMA2Options;
 import org.tukaani.xz.LZMAOutputStream;
 import org.tukaani.xz.UnsupportedOptionsException;
@@ -19,7 +20,13 @@ public class LzmaCompressStreamCtx {
     final LZMA2Options options;
 
     /**
-     * 构造器方法，LZMA 仅支持压缩级别在 0-9 之间
+     * 复用的压缩流，首次压缩时创建，之后每次压缩前重置 (不再重新分配编码器及其数据区)。
+     * 不为 null 时该流总是已完成 (finish) 的
+     */
+    LZMAOutputStream outputStream;
+
+    /**
+     * 构造器方法，LZMA 仅支持压缩级别在 -5 至 9 之间 (负数级别为极速模式，以压缩比换取至多约 2 倍的压缩速度)
      * @param compressionLevel 压缩级别
      */
     public LzmaCompressStreamCtx(int compressionLevel) throws UnsupportedOptionsException {
@@ -39,13 +46,32 @@ public class LzmaCompressStreamCtx {
     public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) throws IOException {
         // 将 dst 包装为 outputStream 对象
         this.wrapper.wrap(dst, dstOffset);
-        LZMAOutputStream outputStream = new LZMAOutputStream(this.wrapper, this.options, srcLength);
-        outputStream.write(src, srcOffset, srcLength);
-        outputStream.finish();
+        if (this.outputStream == null) {
+            this.outputStream = new LZMAOutputStream(this.wrapper, this.options, srcLength, true, ArrayCache.getDefaultCache());
+        } else {
+            this.outputStream.restart(srcLength);
+        }
+
         try {
-            return this.wrapper.size() - dstOffset;
-        } finally {
-            outputStream.close();
+            this.outputStream.write(src, srcOffset, srcLength);
+            this.outputStream.finish();
+        } catch (Throwable e) {
+            // 未完成的流在 close 时会继续向 dst 写入数据，因此直接丢弃
+            this.outputStream = null;
+            throw e;
+        }
+
+        return this.wrapper.size() - dstOffset;
+    }
+
+    /**
+     * 释放复用的压缩流，将编码器的数据区归还至 ArrayCache，之后的压缩将重新创建
+     */
+    public void close() throws IOException {
+        if (this.outputStream != null) {
+            // 流已完成，close 不会再向 dst 写入数据
+            this.outputStream.close();
+            this.outputStream = null;
         }
     }
 }
@@ -0,0 +1,407 @@
+package edu.sysu.pmglab.suranyi.lzma;
+
+import org.tukaani.xz.UnsupportedOptionsException;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * @Data        :2021/07/02
+ * @Author      :suranyi
+ * @Contact     :suranyi.sysu@gamil.com
+ * @Description :线程安全的 LZMA 上下文池，按压缩级别 (压缩器) 与字典大小 (解压器) 出借上下文
+ */
+
+public class LzmaCtxPool {
+    /**
+     * 默认内存预算 512 MiB，默认空闲淘汰时间 60 秒
+     */
+    public static final int DEFAULT_MEMORY_LIMIT = 512 << 10;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60 * 1000L;
+
+    /**
+     * 内存预算 (KiB) 及空闲淘汰时间 (纳秒)
+     */
+    final long memoryLimit;
+    final long idleTimeoutNanos;
+
+    /**
+     * 空闲上下文，键为压缩级别或字典容量分级；队首为最近归还的上下文
+     */
+    final HashMap<Integer, ArrayDeque<Idle<LzmaCompressCtx>>> compressCtxs = new HashMap<>();
+    final HashMap<Integer, ArrayDeque<Idle<LzmaDecompressCtx>>> decompressCtxs = new HashMap<>();
+
+    /**
+     * 已借出的上下文及其记账内存 (KiB)
+     */
+    final IdentityHashMap<Object, Integer> lent = new IdentityHashMap<>();
+
+    /**
+     * 池内上下文 (包括已借出的) 的内存占用 (KiB)
+     */
+    long memoryUsage = 0;
+    long lastSweep = System.nanoTime();
+
+    /**
+     * 统计信息
+     */
+    long hitCount = 0;
+    long missCount = 0;
+    long evictionCount = 0;
+
+    /**
+     * 构造器方法，使用默认内存预算及空闲淘汰时间
+     */
+    public LzmaCtxPool() {
+        this(DEFAULT_MEMORY_LIMIT, DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * 构造器方法
+     * @param memoryLimit 内存预算 (KiB)，池内上下文的总内存超出该值时释放归还的上下文的缓冲区，不再缓存该上下文
+     * @param idleTimeoutMillis 空闲淘汰时间 (毫秒)，空闲超过该时间的上下文将被丢弃
+     */
+    public LzmaCtxPool(long memoryLimit, long idleTimeoutMillis) {
+        if (memoryLimit < 0 || idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("memoryLimit and idleTimeoutMillis must not be negative");
+        }
+
+        this.memoryLimit = memoryLimit;
+        this.idleTimeoutNanos = idleTimeoutMillis * 1000000L;
+    }
+
+    /**
+     * 借出一个压缩上下文，使用完毕后需要通过 release 归还
+     * @param compressionLevel 压缩级别
+     * @return 压缩上下文
+     */
+    public LzmaCompressCtx acquireCompressCtx(int compressionLevel) throws UnsupportedOptionsException {
+        synchronized (this) {
+            sweep(System.nanoTime());
+            ArrayDeque<Idle<LzmaCompressCtx>> queue = this.compressCtxs.get(compressionLevel);
+            if (queue != null && !queue.isEmpty()) {
+                Idle<LzmaCompressCtx> idle = queue.pollFirst();
+                ++this.hitCount;
+                this.lent.put(idle.ctx, idle.memoryUsage);
+                return idle.ctx;
+            }
+
+            ++this.missCount;
+        }
+
+        // 在锁外构建上下文，避免阻塞其他线程
+        LzmaCompressCtx ctx = new LzmaCompressCtx(compressionLevel);
+
+        synchronized (this) {
+            admit(ctx, ctx.getMemoryUsage());
+        }
+
+        return ctx;
+    }
+
+    /**
+     * 借出一个解压上下文，使用完毕后需要通过 release 归还
+     * @param dictSize 预计的字典大小，优先借出字典容量不小于该值的上下文
+     * @return 解压上下文
+     */
+    public LzmaDecompressCtx acquireDecompressCtx(int dictSize) {
+        synchronized (this) {
+            sweep(System.nanoTime());
+
+            // 选取容量不小于 dictSize 的最小分级，不存在时选取容量最大的分级 (字典缓冲区在解压时扩容)
+            int bestKey = -1;
+            int minKey = getDictSizeClass(dictSize);
+            for (Map.Entry<Integer, ArrayDeque<Idle<LzmaDecompressCtx>>> entry : this.decompressCtxs.entrySet()) {
+                int key = entry.getKey();
+                if (!entry.getValue().isEmpty() && (bestKey == -1
+                        || (key >= minKey ? (bestKey < minKey || key < bestKey) : (bestKey < minKey && key > bestKey)))) {
+                    bestKey = key;
+                }
+            }
+
+            if (bestKey != -1) {
+                Idle<LzmaDecompressCtx> idle = this.decompressCtxs.get(bestKey).pollFirst();
+                ++this.hitCount;
+                this.lent.put(idle.ctx, idle.memoryUsage);
+                return idle.ctx;
+            }
+
+            ++this.missCount;
+            LzmaDecompressCtx ctx = new LzmaDecompressCtx();
+            admit(ctx, ctx.getMemoryUsage());
+            return ctx;
+        }
+    }
+
+    /**
+     * 归还压缩上下文
+     * @param ctx 通过 acquireCompressCtx 借出的上下文
+     */
+    public synchronized void release(LzmaCompressCtx ctx) {
+        // 压缩器按数据块大小逐级创建编码器，按当前实际占用重新记账
+        int memory = ctx.getMemoryUsage();
+        this.memoryUsage += memory - takeLent(ctx);
+        if (!retain(memory)) {
+            ctx.shrink();
+            return;
+        }
+
+        getQueue(this.compressCtxs, ctx.getCompressionLevel()).addFirst(new Idle<>(ctx, memory, System.nanoTime()));
+    }
+
+    /**
+     * 归还解压上下文
+     * @param ctx 通过 acquireDecompressCtx 借出的上下文
+     */
+    public synchronized void release(LzmaDecompressCtx ctx) {
+        // 解压过程中字典缓冲区可能扩容，按当前实际占用重新记账
+        int memory = ctx.getMemoryUsage();
+        this.memoryUsage += memory - takeLent(ctx);
+        if (!retain(memory)) {
+            ctx.close();
+            return;
+        }
+
+        getQueue(this.decompressCtxs, getDictSizeClass(ctx.getDictCapacity())).addFirst(new Idle<>(ctx, memory, System.nanoTime()));
+    }
+
+    /**
+     * 丢弃已借出的上下文 (例如压缩、解压过程中发生异常，上下文状态不再可信)，并释放其缓冲区
+     * @param ctx 通过本池借出的上下文
+     */
+    public synchronized void discard(Object ctx) {
+        this.memoryUsage -= takeLent(ctx);
+        free(ctx);
+    }
+
+    /**
+     * 立即淘汰空闲超时的上下文
+     * @return 淘汰的上下文个数
+     */
+    public synchronized int evictIdle() {
+        long now = System.nanoTime();
+        this.lastSweep = now;
+        return evictIdle(this.compressCtxs, now) + evictIdle(this.decompressCtxs, now);
+    }
+
+    /**
+     * 清空所有空闲的上下文
+     */
+    public synchronized void clear() {
+        while (evictOldest()) {
+        }
+    }
+
+    /**
+     * 池内上下文 (包括已借出的) 的内存占用
+     * @return 内存占用 (KiB)
+     */
+    public synchronized long getMemoryUsage() {
+        return this.memoryUsage;
+    }
+
+    /**
+     * 获取内存预算
+     * @return 内存预算 (KiB)
+     */
+    public long getMemoryLimit() {
+        return this.memoryLimit;
+    }
+
+    /**
+     * 空闲上下文个数
+     */
+    public synchronized int getIdleCount() {
+        return count(this.compressCtxs) + count(this.decompressCtxs);
+    }
+
+    /**
+     * 已借出的上下文个数
+     */
+    public synchronized int getLentCount() {
+        return this.lent.size();
+    }
+
+    /**
+     * 命中空闲上下文的借出次数
+     */
+    public synchronized long getHitCount() {
+        return this.hitCount;
+    }
+
+    /**
+     * 需要新建上下文的借出次数
+     */
+    public synchronized long getMissCount() {
+        return this.missCount;
+    }
+
+    /**
+     * 因超出内存预算或空闲超时而丢弃的上下文个数
+     */
+    public synchronized long getEvictionCount() {
+        return this.evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LzmaCtxPool{memoryUsage=" + this.memoryUsage + "KiB, memoryLimit=" + this.memoryLimit
+                + "KiB, idle=" + getIdleCount() + ", lent=" + this.lent.size() + ", hit=" + this.hitCount
+                + ", miss=" + this.missCount + ", eviction=" + this.evictionCount + "}";
+    }
+
+    /**
+     * 记录新建的上下文，必要时淘汰最久未使用的空闲上下文以腾出预算
+     */
+    private void admit(Object ctx, int memory) {
+        while (this.memoryUsage + memory > this.memoryLimit && evictOldest()) {
+        }
+
+        this.memoryUsage += memory;
+        this.lent.put(ctx, memory);
+    }
+
+    /**
+     * 判断归还的上下文能否留在池中，否则将其记为淘汰
+     */
+    private boolean retain(int memory) {
+        sweep(System.nanoTime());
+
+        while (this.memoryUsage > this.memoryLimit && evictOldest()) {
+        }
+
+        if (this.memoryUsage > this.memoryLimit) {
+            this.memoryUsage -= memory;
+            ++this.evictionCount;
+            return false;
+        }
+
+        return true;
+    }
+
+    private int takeLent(Object ctx) {
+        Integer memory = this.lent.remove(ctx);
+        if (memory == null) {
+            throw new IllegalArgumentException("context was not acquired from this pool");
+        }
+
+        return memory;
+    }
+
+    /**
+     * 惰性淘汰：距离上一次扫描超过空闲淘汰时间的一半时扫描一次
+     */
+    private void sweep(long now) {
+        if (now - this.lastSweep >= this.idleTimeoutNanos / 2) {
+            this.lastSweep = now;
+            evictIdle(this.compressCtxs, now);
+            evictIdle(this.decompressCtxs, now);
+        }
+    }
+
+    private <T> int evictIdle(HashMap<Integer, ArrayDeque<Idle<T>>> ctxs, long now) {
+        int evicted = 0;
+        for (ArrayDeque<Idle<T>> queue : ctxs.values()) {
+            // 队尾为最久未使用的上下文
+            while (!queue.isEmpty() && now - queue.peekLast().releaseTime >= this.idleTimeoutNanos) {
+                drop(queue.pollLast());
+                ++evicted;
+            }
+        }
+
+        return evicted;
+    }
+
+    /**
+     * 淘汰最久未使用的空闲上下文
+     * @return 没有空闲上下文时返回 false
+     */
+    private boolean evictOldest() {
+        ArrayDeque<? extends Idle<?>> oldest = null;
+        oldest = getOldest(this.compressCtxs, oldest);
+        oldest = getOldest(this.decompressCtxs, oldest);
+
+        if (oldest == null) {
+            return false;
+        }
+
+        drop(oldest.pollLast());
+        return true;
+    }
+
+    private static <T> ArrayDeque<? extends Idle<?>> getOldest(HashMap<Integer, ArrayDeque<Idle<T>>> ctxs, ArrayDeque<? extends Idle<?>> oldest) {
+        for (ArrayDeque<Idle<T>> queue : ctxs.values()) {
+            if (!queue.isEmpty() && (oldest == null || queue.peekLast().releaseTime - oldest.peekLast().releaseTime < 0)) {
+                oldest = queue;
+            }
+        }
+
+        return oldest;
+    }
+
+    private void drop(Idle<?> idle) {
+        this.memoryUsage -= idle.memoryUsage;
+        ++this.evictionCount;
+        free(idle.ctx);
+    }
+
+    /**
+     * 将不再由本池管理的上下文的缓冲区归还至 ArrayCache
+     */
+    private static void free(Object ctx) {
+        if (ctx instanceof LzmaCompressCtx) {
+            ((LzmaCompressCtx) ctx).shrink();
+        } else if (ctx instanceof LzmaDecompressCtx) {
+            ((LzmaDecompressCtx) ctx).close();
+        }
+    }
+
+    private static <T> ArrayDeque<Idle<T>> getQueue(HashMap<Integer, ArrayDeque<Idle<T>>> ctxs, int key) {
+        ArrayDeque<Idle<T>> queue = ctxs.get(key);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            ctxs.put(key, queue);
+        }
+
+        return queue;
+    }
+
+    private static <T> int count(HashMap<Integer, ArrayDeque<Idle<T>>> ctxs) {
+        int count = 0;
+        for (Iterator<ArrayDeque<Idle<T>>> it = ctxs.values().iterator(); it.hasNext(); ) {
+            count += it.next().size();
+        }
+
+        return count;
+    }
+
+    /**
+     * 字典大小分级：向上取整到 2 的幂
+     */
+    static int getDictSizeClass(int dictSize) {
+        if (dictSize <= 4096) {
+            return 4096;
+        }
+
+        int highest = Integer.highestOneBit(dictSize - 1);
+        return highest >= (1 << 30) ? Integer.MAX_VALUE - 1 : highest << 1;
+    }
+
+    /**
+     * 空闲的上下文
+     */
+    static final class Idle<T> {
+        final T ctx;
+        final int memoryUsage;
+        final long releaseTime;
+
+        Idle(T ctx, int memoryUsage, long releaseTime) {
+            this.ctx = ctx;
+            this.memoryUsage = memoryUsage;
+            this.releaseTime = releaseTime;
+        }
+    }
+}
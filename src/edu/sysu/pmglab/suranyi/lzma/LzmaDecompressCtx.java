@@ -1,16 +1,18 @@
 package edu.sysu.pmglab.suranyi.lzma;
 
-import edu.sysu.pmglab.suranyi.container.VolumeByteInputStream;
 import org.tukaani.xz.ArrayCache;
 import org.tukaani.xz.CorruptedInputException;
+import org.tukaani.xz.LZMAInputStream;
 import org.tukaani.xz.UnsupportedOptionsException;
 import org.tukaani.xz.lz.LZDecoder;
 import org.tukaani.xz.lzma.LZMADecoder;
-import org.tukaani.xz.rangecoder.RangeDecoderFromStream;
+import org.tukaani.xz.rangecoder.RangeDecoderFromArray;
+import org.tukaani.xz.rangecoder.RangeDecoderFromByteBuffer;
 
 import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -22,8 +24,19 @@ import java.util.Arrays;
 
 public class LzmaDecompressCtx {
     public static final int DICT_SIZE_MAX = Integer.MAX_VALUE & ~15;
-    final VolumeByteInputStream wrapper;
-    RangeDecoderFromStream rc;
+
+    /**
+     * 向 ByteSink 写入数据的分块大小
+     */
+    public static final int SINK_CHUNK_SIZE = 64 << 10;
+
+    /**
+     * 默认的收缩观察窗口：连续 64 次调用的用量不超过字典缓冲区容量的 1/4 时，将缓冲区收缩至窗口内的最大用量
+     */
+    public static final int DEFAULT_DECAY_CALLS = 64;
+    static final int DECAY_RATIO = 4;
+    final RangeDecoderFromArray rc;
+    RangeDecoderFromByteBuffer bufferRc;
     LZDecoder lz;
     LZMADecoder lzma;
 
@@ -36,11 +49,55 @@ public class LzmaDecompressCtx {
     int lp;
     int lc;
 
+    /**
+     * 无帧头模式的解码器信息，通过 setRawProperties 配置
+     */
+    LZMADecoder rawLzma;
+    int rawProps = -1;
+    int rawDictSize;
+
+    /**
+     * 向 ByteSink 写入数据的分块缓冲区，首次使用时创建
+     */
+    byte[] chunk;
+
+    /**
+     * 字典缓冲区内存策略：调用结束后保留的容量上限 (字节)、收缩观察窗口 (调用次数，0 表示不收缩)、
+     * 当前窗口内用量不足的连续调用次数及最大用量。多个上下文的总内存预算由 LzmaCtxPool 管理
+     */
+    int capacityLimit = DICT_SIZE_MAX;
+    int decayCalls = DEFAULT_DECAY_CALLS;
+    int underusedCalls;
+    int highWater;
+
+    /**
+     * 预置字典 (构造时复制，不可变)，无预置字典时为 null
+     */
+    final byte[] presetDict;
+
     /**
      * 构造器方法，LZMA 仅支持压缩级别在 0-9 之间
      */
     public LzmaDecompressCtx() {
-        this.wrapper = new VolumeByteInputStream();
+        this(null);
+    }
+
+    /**
+     * 构造器方法，绑定共享的预置字典，用于解压绑定相同字典的 LzmaCompressCtx 产生的数据。
+     * 字典仅在首次使用或被解压数据覆盖后写入字典缓冲区
+     * @param presetDict 预置字典，为 null 时不使用预置字典
+     */
+    public LzmaDecompressCtx(byte[] presetDict) {
+        this.rc = new RangeDecoderFromArray();
+        this.presetDict = presetDict == null ? null : presetDict.clone();
+    }
+
+    /**
+     * 获取预置字典的副本
+     * @return 预置字典，未使用预置字典时返回 null
+     */
+    public byte[] getPresetDict() {
+        return this.presetDict == null ? null : this.presetDict.clone();
     }
 
     /**
@@ -53,133 +110,636 @@ public class LzmaDecompressCtx {
      * @return 实际写入长度
      */
     public int decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) throws IOException {
-        boolean lzmarebuild = false;
-        boolean lzrebuild = false;
+        if (srcOffset < 0 || srcLength < 0 || srcOffset + srcLength < 0 || srcOffset + srcLength > src.length) {
+            throw new IndexOutOfBoundsException();
+        }
 
-        // 将 src 包装为 outputStream 对象
-        this.wrapper.wrap(src, srcOffset);
+        if (srcLength < 13) {
+            throw new CorruptedInputException("Incomplete LZMA header");
+        }
 
         // 读取字节
-        int currentProps = this.wrapper.readUnsignedByte();
-        if (this.props != currentProps) {
-            this.props = currentProps;
+        int currentProps = src[srcOffset] & 0xFF;
 
-            // 解码属性字节
-            if (currentProps > (4 * 5 + 4) * 9 + 8) {
-                throw new CorruptedInputException("Invalid LZMA properties byte");
-            }
-            this.pb = currentProps / (9 * 5);
-            currentProps -= this.pb * 9 * 5;
-            this.lp = currentProps / 9;
-            this.lc = currentProps - this.lp * 9;
+        // 获取字典大小
+        int currentDictSize = 0;
+        for (int i = 0; i < 4; ++i) {
+            currentDictSize |= (src[srcOffset + 1 + i] & 0xFF) << (8 * i);
+        }
 
-            // 验证信息
-            if (lc < 0 || lc > 8 || lp < 0 || lp > 4) {
-                throw new IllegalArgumentException();
+        // 获取原数据大小，实际上 uncompSize 最大是 2GB 大小
+        long uncompSize = 0;
+        for (int i = 0; i < 8; ++i) {
+            uncompSize |= (long) (src[srcOffset + 5 + i] & 0xFF) << (8 * i);
+        }
+
+        // 存储帧，直接拷贝原数据
+        if (currentProps == LzmaCompressCtx.STORED_PROPS) {
+            int size = checkStored(uncompSize, srcLength - LzmaCompressCtx.HEADER_SIZE, dst.length - dstOffset);
+            System.arraycopy(src, srcOffset + LzmaCompressCtx.HEADER_SIZE, dst, dstOffset, size);
+            return size;
+        }
+
+        // 未解压数据的大小为 0，直接返回
+        int size = prepare(currentProps, currentDictSize, uncompSize, dst.length - dstOffset);
+        if (size == 0) {
+            return 0;
+        }
+
+        // rc 重包装，直接从数组读取压缩数据
+        this.rc.wrap(src, srcOffset + 13, srcOffset + srcLength);
+        this.lzma.setRangeDecoder(this.rc);
+
+        // 解压数据
+        decode(this.lzma, dst, dstOffset, size);
+        trim();
+        return size;
+    }
+
+    /**
+     * 解压方法，将原数据按 SINK_CHUNK_SIZE 大小的分块写入 sink，不需要容纳整个原数据的输出容器，
+     * 因此支持超过 2 GB 的原数据，以及原数据长度未知 (帧头长度字段为 -1) 并以结束标记结尾的数据
+     * @param src 压缩数据
+     * @param srcOffset 压缩数据偏移量
+     * @param srcLength 压缩数据长度
+     * @param sink 数据接收端，例如 ByteSink.of(channel)
+     * @return 实际写入 sink 的长度
+     */
+    public long decompress(byte[] src, int srcOffset, int srcLength, ByteSink sink) throws IOException {
+        if (srcOffset < 0 || srcLength < 0 || srcOffset + srcLength < 0 || srcOffset + srcLength > src.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        if (srcLength < 13) {
+            throw new CorruptedInputException("Incomplete LZMA header");
+        }
+
+        int currentProps = src[srcOffset] & 0xFF;
+        int currentDictSize = 0;
+        for (int i = 0; i < 4; ++i) {
+            currentDictSize |= (src[srcOffset + 1 + i] & 0xFF) << (8 * i);
+        }
+
+        // -1 表示原数据长度未知，数据以结束标记结尾
+        long uncompSize = 0;
+        for (int i = 0; i < 8; ++i) {
+            uncompSize |= (long) (src[srcOffset + 5 + i] & 0xFF) << (8 * i);
+        }
+
+        if (currentProps == LzmaCompressCtx.STORED_PROPS) {
+            int size = checkStored(uncompSize, srcLength - LzmaCompressCtx.HEADER_SIZE, Integer.MAX_VALUE);
+            sink.write(src, srcOffset + LzmaCompressCtx.HEADER_SIZE, size);
+            return size;
+        }
+
+        checkHeader(currentProps, currentDictSize);
+        if (uncompSize == 0) {
+            return 0;
+        }
+
+        if (uncompSize < -1) {
+            throw new UnsupportedOptionsException("Uncompressed size is too big");
+        }
+
+        // 字典缓冲区不超过帧头记录的字典大小，与原数据长度无关
+        resetDecoder(getDictSize(uncompSize == -1 ? currentDictSize : (int) Math.min(currentDictSize, uncompSize + getPresetSize())));
+        this.rc.wrap(src, srcOffset + 13, srcOffset + srcLength);
+        this.lzma.setRangeDecoder(this.rc);
+
+        if (this.chunk == null) {
+            this.chunk = new byte[SINK_CHUNK_SIZE];
+        }
+
+        long remaining = uncompSize == -1 ? Long.MAX_VALUE : uncompSize;
+        long size = 0;
+        boolean endReached = false;
+        while (remaining > 0 && !endReached) {
+            this.lz.setLimit((int) Math.min(remaining, this.chunk.length));
+
+            try {
+                this.lzma.decode();
+            } catch (CorruptedInputException e) {
+                // 结束标记以超出字典大小的匹配距离编码，LZDecoder.repeat 会因此抛出异常
+                if (uncompSize != -1 || !this.lzma.endMarkerDetected()) {
+                    throw e;
+                }
+
+                endReached = true;
+                this.rc.normalize();
             }
 
-            lzmarebuild = true;
+            int copiedSize = this.lz.flush(this.chunk, 0);
+            sink.write(this.chunk, 0, copiedSize);
+            remaining -= copiedSize;
+            size += copiedSize;
         }
 
-        // 获取字典大小
+        if (this.lz.hasPending() || !this.rc.isFinished()) {
+            throw new CorruptedInputException();
+        }
+
+        trim();
+        return size;
+    }
+
+    /**
+     * 前缀解压方法，只解压原数据的前 maxBytes 字节，达到 maxBytes 后立即停止解码 (不校验剩余的压缩数据)，
+     * 字典缓冲区也只需容纳前缀。用于只读取数据块头部信息的场景，上下文在提前结束后仍可继续使用
+     * @param src 压缩数据
+     * @param srcOffset 压缩数据偏移量
+     * @param srcLength 压缩数据长度
+     * @param dst 目标数据容器
+     * @param dstOffset 目标数据容器偏移量
+     * @param maxBytes 最多解压的字节数
+     * @return 实际写入长度，即 maxBytes 与原数据长度的较小值
+     */
+    public int decompressPrefix(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int maxBytes) throws IOException {
+        if (srcOffset < 0 || srcLength < 0 || srcOffset + srcLength < 0 || srcOffset + srcLength > src.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+
+        if (srcLength < 13) {
+            throw new CorruptedInputException("Incomplete LZMA header");
+        }
+
+        int currentProps = src[srcOffset] & 0xFF;
         int currentDictSize = 0;
         for (int i = 0; i < 4; ++i) {
-            currentDictSize |= this.wrapper.readUnsignedByte() << (8 * i);
+            currentDictSize |= (src[srcOffset + 1 + i] & 0xFF) << (8 * i);
         }
 
-        if (currentDictSize < 0 || currentDictSize > DICT_SIZE_MAX) {
+        // -1 表示原数据长度未知，数据以结束标记结尾
+        long uncompSize = 0;
+        for (int i = 0; i < 8; ++i) {
+            uncompSize |= (long) (src[srcOffset + 5 + i] & 0xFF) << (8 * i);
+        }
+
+        if (currentProps == LzmaCompressCtx.STORED_PROPS) {
+            int size = Math.min(checkStored(uncompSize, srcLength - LzmaCompressCtx.HEADER_SIZE, Integer.MAX_VALUE), maxBytes);
+            if (dst.length - dstOffset < size) {
+                throw new UnsupportedOptionsException("Uncompressed size is too big");
+            }
+
+            System.arraycopy(src, srcOffset + LzmaCompressCtx.HEADER_SIZE, dst, dstOffset, size);
+            return size;
+        }
+
+        checkHeader(currentProps, currentDictSize);
+        if (uncompSize < -1) {
+            throw new UnsupportedOptionsException("Uncompressed size is too big");
+        }
+
+        int size = uncompSize == -1 ? maxBytes : (int) Math.min(uncompSize, maxBytes);
+        if (size == 0) {
+            return 0;
+        }
+
+        if (dst.length - dstOffset < size) {
+            throw new UnsupportedOptionsException("Uncompressed size is too big");
+        }
+
+        // 前缀中的匹配距离不超过前缀长度 (及预置字典长度之和)
+        resetDecoder(getDictSize((int) Math.min(currentDictSize, (long) size + getPresetSize())));
+        this.rc.wrap(src, srcOffset + 13, srcOffset + srcLength);
+        this.lzma.setRangeDecoder(this.rc);
+
+        int remaining = size;
+        boolean endReached = false;
+        while (remaining > 0 && !endReached) {
+            this.lz.setLimit(remaining);
+
+            try {
+                this.lzma.decode();
+            } catch (CorruptedInputException e) {
+                if (uncompSize != -1 || !this.lzma.endMarkerDetected()) {
+                    throw e;
+                }
+
+                endReached = true;
+                this.rc.normalize();
+            }
+
+            int copiedSize = this.lz.flush(dst, dstOffset);
+            dstOffset += copiedSize;
+            remaining -= copiedSize;
+        }
+
+        // 解压至数据末尾时校验压缩数据是否恰好结束；提前结束时剩余状态在下一次解压前重置
+        if ((endReached || size == uncompSize) && (this.lz.hasPending() || !this.rc.isFinished())) {
+            throw new CorruptedInputException();
+        }
+
+        trim();
+        return size - remaining;
+    }
+
+    /**
+     * 配置无帧头 (raw) 模式的解压参数，取值与压缩器的 getProps()、getDictSize() 一致
+     * @param props LZMA 属性字节
+     * @param dictSize 字典大小上限
+     */
+    public void setRawProperties(int props, int dictSize) throws IOException {
+        if (props < 0 || props > (4 * 5 + 4) * 9 + 8) {
+            throw new UnsupportedOptionsException("Invalid LZMA properties byte");
+        }
+
+        if (dictSize < 0 || dictSize > DICT_SIZE_MAX) {
             throw new UnsupportedOptionsException("LZMA dictionary is too big for this implementation");
         }
 
-        // 获取原数据大小，实际上 uncompSize 最大是 2GB 大小
+        this.rawProps = props;
+        this.rawDictSize = dictSize;
+        this.rawLzma = null;
+    }
+
+    /**
+     * 无帧头 (raw) 解压方法，解压 compressRaw 产生的数据，无需解析帧头及比较属性字节
+     * @param src 压缩数据
+     * @param srcOffset 压缩数据偏移量
+     * @param srcLength 压缩数据长度，等于 uncompSize 时为存储帧
+     * @param dst 目标数据容器
+     * @param dstOffset 目标数据容器偏移量
+     * @param uncompSize 原数据长度 (帧外保存)
+     * @return 实际写入长度
+     */
+    public int decompressRaw(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int uncompSize) throws IOException {
+        if (srcOffset < 0 || srcLength < 0 || srcOffset + srcLength < 0 || srcOffset + srcLength > src.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        if (this.rawProps == -1) {
+            throw new IllegalStateException("raw properties are not set");
+        }
+
+        if (uncompSize < 0 || dst.length - dstOffset < uncompSize) {
+            throw new UnsupportedOptionsException("Uncompressed size is too big");
+        }
+
+        // 存储帧，直接拷贝原数据
+        if (srcLength == uncompSize) {
+            System.arraycopy(src, srcOffset, dst, dstOffset, srcLength);
+            return srcLength;
+        }
+
+        if (srcLength > uncompSize) {
+            throw new CorruptedInputException();
+        }
+
+        resetLz(getDictSize((int) Math.min(this.rawDictSize, (long) uncompSize + getPresetSize())));
+        if (this.rawLzma == null) {
+            int rawPb = this.rawProps / (9 * 5);
+            int rawLp = (this.rawProps - rawPb * 9 * 5) / 9;
+            int rawLc = this.rawProps - rawPb * 9 * 5 - rawLp * 9;
+            this.rawLzma = new LZMADecoder(this.lz, this.rc, rawLc, rawLp, rawPb);
+        } else {
+            this.rawLzma.reset();
+        }
+
+        this.rc.wrap(src, srcOffset, srcOffset + srcLength);
+        decode(this.rawLzma, dst, dstOffset, uncompSize);
+        trim();
+        return uncompSize;
+    }
+
+    /**
+     * 无帧头 (raw) 解压方法，解压 compressRawVarint 产生的数据
+     * @param src 压缩数据
+     * @param srcOffset 压缩数据偏移量
+     * @param srcLength 压缩数据长度 (包括 varint 编码的原数据长度)
+     * @param dst 目标数据容器
+     * @param dstOffset 目标数据容器偏移量
+     * @return 实际写入长度
+     */
+    public int decompressRawVarint(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) throws IOException {
+        if (srcOffset < 0 || srcLength < 0 || srcOffset + srcLength < 0 || srcOffset + srcLength > src.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        // 读取 varint (LEB128) 编码的原数据长度
+        int end = srcOffset + srcLength;
+        int pos = srcOffset;
+        int uncompSize = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (pos == end || shift > 28) {
+                throw new CorruptedInputException("Invalid varint length");
+            }
+
+            int b = src[pos++];
+            uncompSize |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+
+        return decompressRaw(src, pos, end - pos, dst, dstOffset, uncompSize);
+    }
+
+    /**
+     * 解压方法，支持堆内存与直接内存 (direct buffer)，直接从缓冲区读取数据，不经过中间数组
+     * @param src 压缩数据，从 position 开始读取，解压后 position 移动至该压缩帧的末尾
+     * @param dst 目标数据容器，从 position 开始写入，写入后 position 后移
+     * @return 实际写入长度
+     */
+    public int decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+        if (src.remaining() < 13) {
+            throw new CorruptedInputException("Incomplete LZMA header");
+        }
+
+        int currentProps = src.get() & 0xFF;
+        int currentDictSize = 0;
+        for (int i = 0; i < 4; ++i) {
+            currentDictSize |= (src.get() & 0xFF) << (8 * i);
+        }
+
         long uncompSize = 0;
         for (int i = 0; i < 8; ++i) {
-            uncompSize |= (long) this.wrapper.readUnsignedByte() << (8 * i);
+            uncompSize |= (long) (src.get() & 0xFF) << (8 * i);
+        }
+
+        if (currentProps == LzmaCompressCtx.STORED_PROPS) {
+            int size = checkStored(uncompSize, src.remaining(), dst.remaining());
+            int srcLimit = src.limit();
+            src.limit(src.position() + size);
+            dst.put(src);
+            src.limit(srcLimit);
+            return size;
+        }
+
+        int size = prepare(currentProps, currentDictSize, uncompSize, dst.remaining());
+
+        // 空数据帧仍包含 5 字节的区间编码器初始化数据，需要跳过
+        if (this.bufferRc == null) {
+            this.bufferRc = new RangeDecoderFromByteBuffer();
+        }
+        this.bufferRc.wrap(src);
+
+        if (size == 0) {
+            return 0;
+        }
+        this.lzma.setRangeDecoder(this.bufferRc);
+
+        int remaining = size;
+        while (remaining > 0) {
+            this.lz.setLimit(remaining);
+            this.lzma.decode();
+            remaining -= this.lz.flush(dst);
+        }
+
+        if (this.lz.hasPending() || !this.bufferRc.isFinished()) {
+            throw new CorruptedInputException();
+        }
+
+        trim();
+        return size;
+    }
+
+    /**
+     * 校验存储帧
+     * @param uncompSize 原数据大小
+     * @param srcLength 帧头之后的可用数据长度
+     * @param dstLength 目标数据容器剩余容量
+     * @return 原数据大小
+     */
+    private static int checkStored(long uncompSize, int srcLength, int dstLength) throws IOException {
+        if (uncompSize < 0 || uncompSize > srcLength) {
+            throw new CorruptedInputException("Truncated stored frame");
+        }
+
+        if (dstLength < uncompSize) {
+            throw new UnsupportedOptionsException("Uncompressed size is too big");
         }
 
+        return (int) uncompSize;
+    }
+
+    /**
+     * 校验帧头信息，并按需重建或重置解码器
+     * @param currentProps 属性字节
+     * @param currentDictSize 字典大小
+     * @param uncompSize 原数据大小
+     * @param dstLength 目标数据容器剩余容量
+     * @return 原数据大小
+     */
+    private int prepare(int currentProps, int currentDictSize, long uncompSize, int dstLength) throws IOException {
+        checkHeader(currentProps, currentDictSize);
+
         // 未解压数据的大小为 0，直接返回
         if (uncompSize == 0) {
             return 0;
         }
 
-        if (uncompSize > Integer.MAX_VALUE - 2) {
+        if (uncompSize < 0 || uncompSize > Integer.MAX_VALUE - 2) {
             throw new UnsupportedOptionsException("Src is too big (over 2GB)");
         }
 
-        currentDictSize = getDictSize((int) Math.min(currentDictSize, uncompSize));
-        // 校验字典大小，并决定是否需要重置解码器
-        if ((this.dictSize != currentDictSize)) {
-            this.dictSize = currentDictSize;
+        // 校验数据容器
+        if (dstLength < uncompSize) {
+            throw new UnsupportedOptionsException("Uncompressed size is too big");
+        }
+
+        // 字典缓冲区需同时容纳预置字典与原数据
+        resetDecoder(getDictSize((int) Math.min(currentDictSize, uncompSize + getPresetSize())));
+        return (int) uncompSize;
+    }
+
+    /**
+     * 校验属性字节与字典大小，属性字节发生变化时解码器需要重建
+     * @param currentProps 属性字节
+     * @param currentDictSize 字典大小
+     */
+    private void checkHeader(int currentProps, int currentDictSize) throws IOException {
+        if (this.props != currentProps) {
+            // 解码属性字节
+            if (currentProps > (4 * 5 + 4) * 9 + 8) {
+                throw new CorruptedInputException("Invalid LZMA properties byte");
+            }
+
+            this.props = currentProps;
+            this.pb = currentProps / (9 * 5);
+            currentProps -= this.pb * 9 * 5;
+            this.lp = currentProps / 9;
+            this.lc = currentProps - this.lp * 9;
+
+            // 验证信息
+            if (lc < 0 || lc > 8 || lp < 0 || lp > 4) {
+                throw new IllegalArgumentException();
+            }
 
-            lzrebuild = true;
+            this.lzma = null;
         }
 
-        // 校验数据容器
-        int dstLength = dst.length - dstOffset;
-        if ((uncompSize < -1) || (dstLength < uncompSize)) {
-            throw new UnsupportedOptionsException("Uncompressed size is too big");
+        if (currentDictSize < 0 || currentDictSize > DICT_SIZE_MAX) {
+            throw new UnsupportedOptionsException("LZMA dictionary is too big for this implementation");
         }
+    }
 
-        // rc 重包装
-        if (this.rc == null) {
-            // 初始化阶段
-            this.rc = new RangeDecoderFromStream(this.wrapper);
-            this.lz = new LZDecoder(getDictSize(currentDictSize), null, ArrayCache.getDefaultCache());
-            this.lzma = new LZMADecoder(lz, rc, lc, lp, pb);
+    /**
+     * 重置字典缓冲区及解码器，rc 在读取数据时绑定
+     * @param currentDictSize 字典缓冲区大小
+     */
+    private void resetDecoder(int currentDictSize) {
+        resetLz(currentDictSize);
+
+        if (this.lzma == null) {
+            this.lzma = new LZMADecoder(this.lz, null, lc, lp, pb);
         } else {
-            if (lzrebuild) {
-                this.lz.reset(getDictSize(currentDictSize));
+            this.lzma.reset();
+        }
+    }
+
+    /**
+     * 重置字典缓冲区，仅在字典大小发生变化时重建
+     * @param currentDictSize 字典大小
+     */
+    private void resetLz(int currentDictSize) {
+        if (this.lz != null && this.decayCalls > 0) {
+            // 高水位衰减：连续 decayCalls 次调用的用量都远小于容量时，收缩至这些调用中的最大用量
+            if ((long) currentDictSize * DECAY_RATIO <= this.lz.getBufferCapacity()) {
+                this.highWater = Math.max(this.highWater, currentDictSize);
+                if (++this.underusedCalls >= this.decayCalls) {
+                    this.lz.shrink(this.highWater);
+                    this.dictSize = this.highWater;
+                    this.underusedCalls = 0;
+                    this.highWater = 0;
+                }
             } else {
-                this.lz.reset();
+                this.underusedCalls = 0;
+                this.highWater = 0;
             }
+        }
 
-            this.rc.reWrap();
+        if (this.lz == null) {
+            this.lz = new LZDecoder(currentDictSize, this.presetDict, ArrayCache.getDefaultCache());
+            this.dictSize = currentDictSize;
+        } else if (this.dictSize != currentDictSize) {
+            this.lz.reset(currentDictSize);
+            this.dictSize = currentDictSize;
+        } else {
+            this.lz.reset();
+        }
+    }
 
-            if (lzmarebuild) {
-                this.lzma = new LZMADecoder(lz, rc, lc, lp, pb);
-            } else {
-                this.lzma.reset();
-            }
+    /**
+     * 调用结束后，字典缓冲区超过容量上限时释放字典缓冲区
+     */
+    private void trim() {
+        if (this.lz != null && this.lz.getBufferCapacity() > this.capacityLimit) {
+            releaseBuffer();
+        }
+    }
+
+    /**
+     * 释放字典缓冲区及引用它的解码器，属性字节等配置保留，之后的解压将按需重新创建
+     */
+    private void releaseBuffer() {
+        if (this.lz != null) {
+            this.lz.putArraysToCache(ArrayCache.getDefaultCache());
         }
 
-        // 解压数据长度
-        int size = 0;
+        this.lz = null;
+        this.lzma = null;
+        this.rawLzma = null;
+        this.dictSize = -1;
+        this.underusedCalls = 0;
+        this.highWater = 0;
+    }
 
-        while (dstLength > 0) {
-            int copySizeMax = (int) Math.min(dstLength, uncompSize);
-            lz.setLimit(copySizeMax);
+    /**
+     * 设置调用结束后保留的字典缓冲区容量上限，超过该值的缓冲区 (由超大数据块引起) 在调用结束后释放
+     * @param capacityLimit 容量上限 (字节)
+     */
+    public void setCapacityLimit(int capacityLimit) {
+        if (capacityLimit < 0) {
+            throw new IllegalArgumentException("capacityLimit must not be negative");
+        }
 
-            // Decode into the dictionary buffer.
-            try {
-                lzma.decode();
-            } catch (CorruptedInputException e) {
-                if (uncompSize != -1 || !lzma.endMarkerDetected()) {
-                    throw e;
-                }
+        this.capacityLimit = capacityLimit;
+    }
 
-                rc.normalize();
-            }
+    public int getCapacityLimit() {
+        return this.capacityLimit;
+    }
+
+    /**
+     * 设置收缩观察窗口，连续 decayCalls 次调用的用量不超过容量的 1/4 时收缩字典缓冲区
+     * @param decayCalls 调用次数，0 表示不收缩
+     */
+    public void setDecayCalls(int decayCalls) {
+        if (decayCalls < 0) {
+            throw new IllegalArgumentException("decayCalls must not be negative");
+        }
+
+        this.decayCalls = decayCalls;
+        this.underusedCalls = 0;
+        this.highWater = 0;
+    }
+
+    public int getDecayCalls() {
+        return this.decayCalls;
+    }
+
+    /**
+     * 预置字典长度，无预置字典时为 0
+     */
+    private int getPresetSize() {
+        return this.presetDict == null ? 0 : this.presetDict.length;
+    }
+
+    /**
+     * 解码 size 字节至 dst，并校验压缩数据是否恰好结束
+     */
+    private void decode(LZMADecoder lzma, byte[] dst, int dstOffset, int size) throws IOException {
+        int remaining = size;
+        while (remaining > 0) {
+            this.lz.setLimit(remaining);
+            lzma.decode();
 
             // Copy from the dictionary to buf.
-            int copiedSize = lz.flush(dst, dstOffset);
+            int copiedSize = this.lz.flush(dst, dstOffset);
             dstOffset += copiedSize;
-            dstLength -= copiedSize;
-            size += copiedSize;
+            remaining -= copiedSize;
+        }
 
-            if (uncompSize >= 0) {
-                // Update the number of bytes left to be decompressed.
-                uncompSize -= copiedSize;
+        if (this.lz.hasPending() || !this.rc.isFinished()) {
+            throw new CorruptedInputException();
+        }
+    }
 
-                if (uncompSize == 0) {
-                    if (lz.hasPending() || !rc.isFinished()) {
-                        throw new CorruptedInputException();
-                    }
-                    return size == 0 ? -1 : size;
-                }
-            }
+    /**
+     * 获取当前解码器字典缓冲区大小
+     * @return 字典大小，尚未解压过任何数据时返回 -1
+     */
+    public int getDictSize() {
+        return this.dictSize;
+    }
+
+    /**
+     * 获取当前已分配的字典缓冲区容量，该值可能大于 getDictSize()
+     * @return 字典缓冲区容量，尚未解压过任何数据时返回 0
+     */
+    public int getDictCapacity() {
+        if (this.lz == null) {
+            return 0;
         }
 
-        return size;
+        return this.lz.getBufferCapacity();
+    }
+
+    /**
+     * 获取该上下文的近似内存占用
+     * @return 内存占用 (KiB)，尚未解压过任何数据时返回 0
+     */
+    public int getMemoryUsage() {
+        if (this.lz == null) {
+            return 0;
+        }
+
+        return LZMAInputStream.getMemoryUsage(this.lz.getBufferCapacity(), this.lc, this.lp)
+                + (this.chunk == null ? 0 : this.chunk.length / 1024);
     }
 
     private static int getDictSize(int dictSize) {
@@ -191,9 +751,11 @@ public class LzmaDecompressCtx {
         return (Math.max(dictSize, 4096) + 15) & ~15;
     }
 
+    /**
+     * 释放字典缓冲区，上下文仍可继续使用
+     */
     public void close() {
-        this.lz = null;
-        this.lzma = null;
+        releaseBuffer();
     }
 
     public static void main(String[] args) throws IOException {
@@ -1,6 +1,7 @@
 package edu.sysu.pmglab.suranyi.lzma;
 
 import edu.sysu.pmglab.suranyi.container.VolumeByteInputStream;
+import org.tukaani.xz.ArrayCache;
 import org.tukaani.xz.LZMAInputStream;
 
 import java.io.BufferedInputStream;
@@ -18,6 +19,11 @@ import java.util.Arrays;
 public class LzmaDecompressStreamCtx {
     final VolumeByteInputStream wrapper;
 
+    /**
+     * 复用的解压流，首次解压时创建，之后每次解压前从新的帧头重新开始 (不再重新分配字典缓冲区及解码器)
+     */
+    LZMAInputStream inputStream;
+
     /**
      * 构造器方法，LZMA 仅支持压缩级别在 0-9 之间
      */
@@ -37,8 +43,22 @@ public class LzmaDecompressStreamCtx {
     public int decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) throws IOException {
         // 将 dst 包装为 outputStream 对象
         this.wrapper.wrap(src, srcOffset);
-        try (LZMAInputStream outputStream = new LZMAInputStream(this.wrapper)) {
-            return outputStream.read(dst, dstOffset, dst.length);
+        if (this.inputStream == null) {
+            this.inputStream = new LZMAInputStream(this.wrapper, -1, true, ArrayCache.getDefaultCache());
+        } else {
+            this.inputStream.restart();
+        }
+
+        return this.inputStream.read(dst, dstOffset, dst.length - dstOffset);
+    }
+
+    /**
+     * 释放复用的解压流，将字典缓冲区归还至 ArrayCache，之后的解压将重新创建
+     */
+    public void close() throws IOException {
+        if (this.inputStream != null) {
+            this.inputStream.close();
+            this.inputStream = null;
         }
     }
 
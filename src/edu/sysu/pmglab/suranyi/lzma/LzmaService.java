@@ -0,0 +1,173 @@
+package edu.sysu.pmglab.suranyi.lzma;
+
+import org.tukaani.xz.LZMA2Options;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * @Data        :2021/07/08
+ * @Author      :suranyi
+ * @Contact     :suranyi.sysu@gamil.com
+ * @Description :LZMA 异步压缩、解压服务，任务在调用者提供的执行器中使用池化的上下文执行，
+ *               通过有界的在途任务数对提交者施加背压
+ */
+
+public class LzmaService {
+    final int compressionLevel;
+    final LzmaCtxPool ctxPool;
+    final Executor executor;
+
+    /**
+     * 在途 (已提交但未完成) 任务数的许可，许可耗尽时提交方阻塞
+     */
+    final int maxPending;
+    final Semaphore permits;
+
+    /**
+     * 构造器方法，使用公共 fork-join 线程池及独立的上下文池
+     * @param compressionLevel 压缩级别
+     * @param maxPending 最大在途任务数
+     */
+    public LzmaService(int compressionLevel, int maxPending) {
+        this(compressionLevel, maxPending, new LzmaCtxPool(), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 构造器方法
+     * @param compressionLevel 压缩级别
+     * @param maxPending 最大在途任务数，达到该值后提交方法阻塞，直到有任务完成
+     * @param ctxPool 上下文池，可与其他组件共享
+     * @param executor 执行压缩、解压任务的执行器
+     */
+    public LzmaService(int compressionLevel, int maxPending, LzmaCtxPool ctxPool, Executor executor) {
+        if (compressionLevel < LZMA2Options.PRESET_MIN || compressionLevel > LZMA2Options.PRESET_MAX) {
+            throw new IllegalArgumentException("LZMA only supports compression levels " + LZMA2Options.PRESET_MIN + " to " + LZMA2Options.PRESET_MAX);
+        }
+
+        if (maxPending <= 0) {
+            throw new IllegalArgumentException("maxPending must be positive");
+        }
+
+        this.compressionLevel = compressionLevel;
+        this.maxPending = maxPending;
+        this.permits = new Semaphore(maxPending);
+        this.ctxPool = ctxPool;
+        this.executor = executor;
+    }
+
+    /**
+     * 提交压缩任务，在途任务数达到上限时阻塞。阻塞基于 Semaphore 而非监视器锁，不会占用虚拟线程的载体线程
+     * @param block 数据块，dst 容器需要预留足够的空间
+     * @return 完成后返回该数据块，其 getOutputLength() 为实际写入 dst 的长度 (dst 空间不足时为 -1)
+     */
+    public CompletableFuture<LzmaBlock> compress(LzmaBlock block) throws InterruptedException {
+        return submit(block, true);
+    }
+
+    /**
+     * 提交解压任务，在途任务数达到上限时阻塞
+     * @param block 数据块，src 为 compress 产生的压缩数据
+     * @return 完成后返回该数据块，其 getOutputLength() 为实际写入 dst 的长度
+     */
+    public CompletableFuture<LzmaBlock> decompress(LzmaBlock block) throws InterruptedException {
+        return submit(block, false);
+    }
+
+    /**
+     * 尝试提交压缩任务，在途任务数达到上限时不阻塞
+     * @param block 数据块
+     * @return 任务的 future，在途任务数达到上限时返回 null
+     */
+    public CompletableFuture<LzmaBlock> tryCompress(LzmaBlock block) {
+        return this.permits.tryAcquire() ? execute(block, true) : null;
+    }
+
+    /**
+     * 尝试提交解压任务，在途任务数达到上限时不阻塞
+     * @param block 数据块
+     * @return 任务的 future，在途任务数达到上限时返回 null
+     */
+    public CompletableFuture<LzmaBlock> tryDecompress(LzmaBlock block) {
+        return this.permits.tryAcquire() ? execute(block, false) : null;
+    }
+
+    public LzmaCtxPool getCtxPool() {
+        return this.ctxPool;
+    }
+
+    public int getMaxPending() {
+        return this.maxPending;
+    }
+
+    /**
+     * 获取在途任务数
+     */
+    public int getPendingCount() {
+        return this.maxPending - this.permits.availablePermits();
+    }
+
+    private CompletableFuture<LzmaBlock> submit(LzmaBlock block, boolean compress) throws InterruptedException {
+        this.permits.acquire();
+        return execute(block, compress);
+    }
+
+    /**
+     * 在执行器中运行任务，调用前需已获取一个许可，任务结束 (或被拒绝) 时归还
+     */
+    private CompletableFuture<LzmaBlock> execute(LzmaBlock block, boolean compress) {
+        CompletableFuture<LzmaBlock> future = new CompletableFuture<>();
+
+        try {
+            this.executor.execute(() -> run(block, compress, future));
+        } catch (RejectedExecutionException e) {
+            this.permits.release();
+            throw e;
+        }
+
+        return future;
+    }
+
+    private void run(LzmaBlock block, boolean compress, CompletableFuture<LzmaBlock> future) {
+        try {
+            if (compress) {
+                LzmaCompressCtx ctx = this.ctxPool.acquireCompressCtx(this.compressionLevel);
+                try {
+                    block.outputLength = ctx.compress(block.src, block.srcOffset, block.srcLength, block.dst, block.dstOffset);
+                } catch (Throwable e) {
+                    // 压缩失败时上下文状态不再可信，丢弃前释放其编码器
+                    this.ctxPool.discard(ctx);
+                    throw e;
+                }
+
+                this.ctxPool.release(ctx);
+            } else {
+                LzmaDecompressCtx ctx = this.ctxPool.acquireDecompressCtx(0);
+                try {
+                    block.outputLength = ctx.decompress(block.src, block.srcOffset, block.srcLength, block.dst, block.dstOffset);
+                } catch (IOException e) {
+                    // 损坏的数据块是常见输入，解压上下文每次调用都重新解析帧头并重置状态，因此仍可归还复用
+                    this.ctxPool.release(ctx);
+                    throw e;
+                } catch (Throwable e) {
+                    this.ctxPool.discard(ctx);
+                    throw e;
+                }
+
+                this.ctxPool.release(ctx);
+            }
+        } catch (Throwable e) {
+            this.permits.release();
+            future.completeExceptionally(e);
+            return;
+        }
+
+        // 先归还许可再完成 future，使依赖该 future 的提交方不会因许可未归还而阻塞
+        this.permits.release();
+        future.complete(block);
+    }
+}
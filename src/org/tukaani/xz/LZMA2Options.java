@@ -24,9 +24,10 @@ import java.io.InputStream;
  */
 public class LZMA2Options extends FilterOptions {
     /**
-     * Minimum valid compression preset level is 0.
+     * Minimum valid compression preset level is -5.
+     * The negative presets trade compression ratio for speed.
      */
-    public static final int PRESET_MIN = 0;
+    public static final int PRESET_MIN = -5;
 
     /**
      * Maximum valid compression preset level is 9.
@@ -104,6 +105,14 @@ public class LZMA2Options extends FilterOptions {
      */
     public static final int MODE_NORMAL = LZMAEncoder.MODE_NORMAL;
 
+    /**
+     * Compression mode: greedy.
+     * The longest match found at each position is used without looking
+     * ahead for a better one. This is used by the negative presets
+     * together with <code>MF_HS4</code>.
+     */
+    public static final int MODE_GREEDY = LZMAEncoder.MODE_GREEDY;
+
     /**
      * Minimum value for <code>niceLen</code> is 8.
      */
@@ -114,22 +123,55 @@ public class LZMA2Options extends FilterOptions {
      */
     public static final int NICE_LEN_MAX = 273;
 
+    /**
+     * Maximum value for <code>repsTested</code> is 4, the number of
+     * repeated distances that LZMA keeps.
+     */
+    public static final int REPS_TESTED_MAX = 4;
+
+    /**
+     * Match finder: Hash Chain 2-3
+     */
+    public static final int MF_HC3 = LZEncoder.MF_HC3;
+
     /**
      * Match finder: Hash Chain 2-3-4
      */
     public static final int MF_HC4 = LZEncoder.MF_HC4;
 
+    /**
+     * Match finder: Binary tree 2
+     */
+    public static final int MF_BT2 = LZEncoder.MF_BT2;
+
+    /**
+     * Match finder: Binary tree 2-3
+     */
+    public static final int MF_BT3 = LZEncoder.MF_BT3;
+
     /**
      * Match finder: Binary tree 2-3-4
      */
     public static final int MF_BT4 = LZEncoder.MF_BT4;
 
+    /**
+     * Match finder: Hash single 4, which checks only the most recent
+     * position with the same 4-byte hash
+     */
+    public static final int MF_HS4 = LZEncoder.MF_HS4;
+
     private static final int[] presetToDictSize = {
             1 << 18, 1 << 20, 1 << 21, 1 << 22, 1 << 22,
             1 << 23, 1 << 23, 1 << 24, 1 << 25, 1 << 26};
 
     private static final int[] presetToDepthLimit = {4, 8, 24, 48};
 
+    // Indexed by -preset - 1.
+    private static final int[] negativePresetToDictSize = {
+            1 << 20, 1 << 20, 1 << 20, 1 << 18, 1 << 16};
+
+    private static final int[] negativePresetToRepsTested = {4, 4, 2, 1, 0};
+
     private int dictSize;
     private byte[] presetDict = null;
     private int lc;
@@ -139,6 +181,8 @@ public class LZMA2Options extends FilterOptions {
     private int niceLen;
     private int mf;
     private int depthLimit;
+    private int repsTested = REPS_TESTED_MAX;
+    private boolean pipelined = false;
 
     /**
      * Creates new LZMA2 options and sets them to the default values.
@@ -188,6 +232,15 @@ public class LZMA2Options extends FilterOptions {
      * The presets 4-6 are fairly slow presets with high compression.
      * The default preset (<code>PRESET_DEFAULT</code>) is 6.
      * <p>
+     * The presets -1 to -5 use the single-probe <code>MF_HS4</code>
+     * match finder. The preset -1 uses <code>MODE_FAST</code>; the presets
+     * -2 to -5 use <code>MODE_GREEDY</code> and test fewer repeated
+     * distances (see <code>setRepsTested</code>) and use smaller
+     * dictionaries as the level decreases.
+     * They are up to about twice as fast as the preset 0 with a lower
+     * compression ratio. The output is regular LZMA2 and doesn't need
+     * anything special from the decoder.
+     * <p>
      * The presets 7-9 are like the preset 6 but use bigger dictionaries
      * and have higher compressor and decompressor memory requirements.
      * Unless the uncompressed size of the file exceeds 8&nbsp;MiB,
@@ -198,7 +251,7 @@ public class LZMA2Options extends FilterOptions {
      *                          <code>preset</code> is not supported
      */
     public void setPreset(int preset) throws UnsupportedOptionsException {
-        if (preset < 0 || preset > 9) {
+        if (preset < PRESET_MIN || preset > PRESET_MAX) {
             throw new UnsupportedOptionsException(
                     "Unsupported preset: " + preset);
         }
@@ -206,14 +259,23 @@ public class LZMA2Options extends FilterOptions {
         lc = LC_DEFAULT;
         lp = LP_DEFAULT;
         pb = PB_DEFAULT;
-        dictSize = presetToDictSize[preset];
+        repsTested = REPS_TESTED_MAX;
 
-        if (preset <= 3) {
+        if (preset < 0) {
+            dictSize = negativePresetToDictSize[-preset - 1];
+            mode = preset == -1 ? MODE_FAST : MODE_GREEDY;
+            mf = MF_HS4;
+            niceLen = NICE_LEN_MAX;
+            depthLimit = 0;
+            repsTested = negativePresetToRepsTested[-preset - 1];
+        } else if (preset <= 3) {
+            dictSize = presetToDictSize[preset];
             mode = MODE_FAST;
             mf = MF_HC4;
             niceLen = preset <= 1 ? 128 : NICE_LEN_MAX;
             depthLimit = presetToDepthLimit[preset];
         } else {
+            dictSize = presetToDictSize[preset];
             mode = MODE_NORMAL;
             mf = MF_BT4;
             niceLen = (preset == 4) ? 16 : (preset == 5) ? 32 : 64;
@@ -416,12 +478,14 @@ public class LZMA2Options extends FilterOptions {
      * Sets the compression mode.
      * <p>
      * This specifies the method to analyze the data produced by
-     * a match finder. The default is <code>MODE_FAST</code> for presets
-     * 0-3 and <code>MODE_NORMAL</code> for presets 4-9.
+     * a match finder. The default is <code>MODE_GREEDY</code> for presets
+     * -5 to -2, <code>MODE_FAST</code> for presets -1 to 3, and
+     * <code>MODE_NORMAL</code> for presets 4-9.
      * <p>
      * Usually <code>MODE_FAST</code> is used with Hash Chain match finders
      * and <code>MODE_NORMAL</code> with Binary Tree match finders. This is
-     * also what the presets do.
+     * also what the presets do. <code>MODE_GREEDY</code> is meant for
+     * <code>MF_HS4</code>.
      * <p>
      * The special mode <code>MODE_UNCOMPRESSED</code> doesn't try to
      * compress the data at all (and doesn't use a match finder) and will
@@ -431,7 +495,7 @@ public class LZMA2Options extends FilterOptions {
      *                          <code>mode</code> is not supported
      */
     public void setMode(int mode) throws UnsupportedOptionsException {
-        if (mode < MODE_UNCOMPRESSED || mode > MODE_NORMAL)
+        if (mode < MODE_UNCOMPRESSED || mode > MODE_GREEDY)
             throw new UnsupportedOptionsException(
                     "Unsupported compression mode: " + mode);
 
@@ -482,13 +546,21 @@ public class LZMA2Options extends FilterOptions {
      * Match finder has a major effect on compression speed, memory usage,
      * and compression ratio. Usually Hash Chain match finders are faster
      * than Binary Tree match finders. The default depends on the preset:
-     * 0-3 use <code>MF_HC4</code> and 4-9 use <code>MF_BT4</code>.
+     * -5 to -1 use <code>MF_HS4</code>, 0-3 use <code>MF_HC4</code>, and 4-9 use
+     * <code>MF_BT4</code>.
+     * <p>
+     * <code>MF_HC3</code>, <code>MF_BT2</code>, and <code>MF_BT3</code>
+     * find shorter matches than the 4-byte variants. They can improve
+     * compression of data with many short repeats (small alphabets,
+     * tightly packed records) at the cost of speed, and they need less
+     * memory for the hash tables.
      *
      * @throws UnsupportedOptionsException
      *                          <code>mf</code> is not supported
      */
     public void setMatchFinder(int mf) throws UnsupportedOptionsException {
-        if (mf != MF_HC4 && mf != MF_BT4)
+        if (mf != MF_HC3 && mf != MF_HC4 && mf != MF_BT2 && mf != MF_BT3
+                && mf != MF_BT4 && mf != MF_HS4)
             throw new UnsupportedOptionsException(
                     "Unsupported match finder: " + mf);
 
@@ -514,6 +586,8 @@ public class LZMA2Options extends FilterOptions {
      * make the compressor extremely slow with some files. Avoid settings
      * higher than 1000 unless you are prepared to interrupt the compression
      * in case it is taking far too long.
+     * <p>
+     * <code>MF_HS4</code> ignores the depth limit.
      *
      * @throws UnsupportedOptionsException
      *                          <code>depthLimit</code> is invalid
@@ -527,6 +601,66 @@ public class LZMA2Options extends FilterOptions {
         this.depthLimit = depthLimit;
     }
 
+    /**
+     * Gets the number of repeated distances tested at each position
+     * in <code>MODE_GREEDY</code>.
+     */
+    public int getRepsTested() {
+        return repsTested;
+    }
+
+    /**
+     * Sets the number of repeated distances tested at each position
+     * in <code>MODE_GREEDY</code>.
+     * <p>
+     * Testing fewer of the most recently used distances makes each
+     * position cheaper but misses some matches that would be cheap to
+     * encode. The default is <code>REPS_TESTED_MAX</code> except for
+     * the presets -3 to -5, which use 2, 1, and 0, respectively.
+     * The other modes always test all of them.
+     *
+     * @throws UnsupportedOptionsException
+     *                          <code>repsTested</code> is negative or
+     *                          greater than <code>REPS_TESTED_MAX</code>
+     */
+    public void setRepsTested(int repsTested)
+            throws UnsupportedOptionsException {
+        if (repsTested < 0 || repsTested > REPS_TESTED_MAX)
+            throw new UnsupportedOptionsException(
+                    "Unsupported number of tested repeated distances: "
+                    + repsTested);
+
+        this.repsTested = repsTested;
+    }
+
+    /**
+     * Returns true if the match finder runs in its own thread.
+     */
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * Sets whether the match finder runs in its own thread ahead of
+     * the encoder.
+     * <p>
+     * This speeds up the compression of a single stream when a second
+     * processor core is available. The compressed output is identical
+     * either way. The gain is largest with <code>MODE_NORMAL</code>,
+     * where matches are searched at nearly every position anyway. The
+     * other modes skip over the bytes of the matches they use, but the
+     * match finder thread doesn't know in advance which ones and
+     * searches at every position. The default is <code>false</code>,
+     * and the setting is ignored on single-processor systems.
+     * <p>
+     * The match finder thread is taken from a shared pool of daemon
+     * threads. It only runs while data is being encoded, so no cleanup
+     * is needed when the encoder is no longer used.
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
     public int getEncoderMemoryUsage() {
         return (mode == MODE_UNCOMPRESSED)
                 ? UncompressedLZMA2OutputStream.getMemoryUsage()
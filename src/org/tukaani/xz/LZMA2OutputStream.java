@@ -45,11 +45,7 @@ class LZMA2OutputStream extends FinishableOutputStream {
 
         int dictSize = options.getDictSize();
         int extraSizeBefore = getExtraSizeBefore(dictSize);
-        lzma = LZMAEncoder.getInstance(rc,
-                options.getLc(), options.getLp(), options.getPb(),
-                options.getMode(),
-                dictSize, extraSizeBefore, options.getNiceLen(),
-                options.getMatchFinder(), options.getDepthLimit(),
+        lzma = LZMAEncoder.getInstance(rc, options, extraSizeBefore,
                 this.arrayCache);
 
         lz = lzma.getLZEncoder();
@@ -74,7 +70,7 @@ class LZMA2OutputStream extends FinishableOutputStream {
         int extraSizeBefore = getExtraSizeBefore(dictSize);
         return 70 + LZMAEncoder.getMemoryUsage(options.getMode(),
                 dictSize, extraSizeBefore,
-                options.getMatchFinder());
+                options.getMatchFinder(), options.isPipelined());
     }
 
     public void write(int b) throws IOException {
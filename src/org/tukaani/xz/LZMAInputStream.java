@@ -55,6 +55,16 @@ public class LZMAInputStream extends InputStream {
     private LZMADecoder lzma;
     private boolean endReached = false;
     private boolean relaxedEndCondition = false;
+
+    /**
+     * Settings needed by <code>restart</code>: whether the stream keeps
+     * its arrays at the end of the stream so that it can be restarted,
+     * the memory usage limit, and the properties byte the decoder was
+     * created for.
+     */
+    private boolean restartable = false;
+    private int memoryLimit = -1;
+    private int props = -1;
     /**
      * Number of uncompressed bytes left to be decompressed, or -1 if
      * the end marker is used.
@@ -200,6 +210,60 @@ public class LZMAInputStream extends InputStream {
      */
     public LZMAInputStream(InputStream in, int memoryLimit,
                            ArrayCache arrayCache) throws IOException {
+        this(in, memoryLimit, false, arrayCache);
+    }
+
+    /**
+     * Creates a new .lzma file format decompressor that can be restarted.
+     * <p>
+     * This is identical to
+     * <code>LZMAInputStream(InputStream, int, ArrayCache)</code> except
+     * that if <code>restartable</code> is true, the dictionary buffer and
+     * the decoder are kept at the end of the stream so that
+     * <code>restart</code> can reuse them. They are returned to
+     * <code>arrayCache</code> only by <code>close()</code>.
+     *
+     * @param       in          input stream from which .lzma data is read;
+     *                          it might be a good idea to wrap it in
+     *                          <code>BufferedInputStream</code>, see the
+     *                          note at the top of this page
+     *
+     * @param       memoryLimit memory usage limit in kibibytes (KiB)
+     *                          or <code>-1</code> to impose no
+     *                          memory usage limit
+     *
+     * @param       restartable keep the arrays at the end of the stream
+     *                          so that <code>restart</code> can be used
+     *
+     * @param       arrayCache  cache to be used for allocating large arrays
+     *
+     * @throws CorruptedInputException
+     *                          file is corrupt or perhaps not in
+     *                          the .lzma format at all
+     *
+     * @throws UnsupportedOptionsException
+     *                          dictionary size or uncompressed size is too
+     *                          big for this implementation
+     *
+     * @throws MemoryLimitException
+     *                          memory usage limit was exceeded
+     *
+     * @throws EOFException
+     *                          file is truncated or perhaps not in
+     *                          the .lzma format at all
+     *
+     * @throws IOException may be thrown by <code>in</code>
+     */
+    public LZMAInputStream(InputStream in, int memoryLimit,
+                           boolean restartable, ArrayCache arrayCache)
+            throws IOException {
+        this.restartable = restartable;
+        this.memoryLimit = memoryLimit;
+        readHeader(in, arrayCache);
+    }
+
+    private void readHeader(InputStream in, ArrayCache arrayCache)
+            throws IOException {
         DataInputStream inData = new DataInputStream(in);
 
         // Properties byte (lc, lp, and pb)
@@ -226,6 +290,44 @@ public class LZMAInputStream extends InputStream {
         initialize(in, uncompSize, propsByte, dictSize, null, arrayCache);
     }
 
+    /**
+     * Starts decoding the next .lzma stream, header included, from the same
+     * input stream. The dictionary buffer, the range decoder, and (if
+     * the properties byte doesn't change) the LZMA decoder are reused
+     * instead of allocating new ones, so decompressing many small blocks
+     * doesn't create garbage. The previous stream doesn't need to have
+     * been read to the end.
+     * <p>
+     * The stream must have been created with <code>restartable</code>
+     * set to true.
+     *
+     * @throws XZIOException if the stream has been closed
+     *
+     * @throws IllegalStateException if the stream wasn't created as
+     *                          restartable
+     *
+     * @throws IOException may be thrown by <code>in</code> or for the same
+     *                          reasons as in the constructors
+     */
+    public void restart() throws IOException {
+        if (!restartable)
+            throw new IllegalStateException(
+                    "The stream wasn't created as restartable");
+
+        if (in == null)
+            throw new XZIOException("Stream closed");
+
+        endReached = false;
+        exception = null;
+
+        try {
+            readHeader(in, arrayCache);
+        } catch (IOException e) {
+            exception = e;
+            throw e;
+        }
+    }
+
     /**
      * Creates a new input stream that decompresses raw LZMA data (no .lzma
      * header) from <code>in</code>.
@@ -597,9 +699,27 @@ public class LZMAInputStream extends InputStream {
         if (uncompSize >= 0 && dictSize > uncompSize)
             dictSize = getDictSize((int) uncompSize);
 
-        lz = new LZDecoder(getDictSize(dictSize), presetDict, arrayCache);
-        rc = new RangeDecoderFromStream(in);
-        lzma = new LZMADecoder(lz, rc, lc, lp, pb);
+        // Reuse the decoder state when restarting. LZDecoder.reset(int)
+        // only grows the buffer.
+        if (lz == null) {
+            lz = new LZDecoder(getDictSize(dictSize), presetDict, arrayCache);
+        } else {
+            lz.reset(getDictSize(dictSize));
+        }
+
+        if (rc == null) {
+            rc = new RangeDecoderFromStream(in);
+        } else {
+            rc.reWrap();
+        }
+
+        int newProps = (pb * 5 + lp) * 9 + lc;
+        if (lzma == null || props != newProps) {
+            lzma = new LZMADecoder(lz, rc, lc, lp, pb);
+            props = newProps;
+        } else {
+            lzma.reset();
+        }
 
         remainingSize = uncompSize;
     }
@@ -752,7 +872,9 @@ public class LZMAInputStream extends InputStream {
                             && !rc.isFinished()))
                         throw new CorruptedInputException();
 
-                    putArraysToCache();
+                    if (!restartable)
+                        putArraysToCache();
+
                     return size == 0 ? -1 : size;
                 }
             }
@@ -769,11 +891,15 @@ public class LZMAInputStream extends InputStream {
         if (lz != null) {
             lz.putArraysToCache(arrayCache);
             lz = null;
+            rc = null;
+            lzma = null;
         }
     }
 
     /**
      * Closes the stream and calls <code>in.close()</code>.
+     * The dictionary buffer of a restartable stream is kept until then
+     * so that <code>restart</code> can reuse it.
      * If the stream was already closed, this does nothing.
      *
      * @throws IOException if thrown by <code>in.close()</code>
@@ -26,8 +26,10 @@ public class LZMAOutputStream extends FinishableOutputStream {
     private final ArrayCache arrayCache;
     private final RangeEncoderToStream rc;
     private final int props;
-    private final boolean useEndMarker;
-    private final long expectedUncompressedSize;
+    private final int dictSize;
+    private final boolean restartable;
+    private boolean useEndMarker;
+    private long expectedUncompressedSize;
     private final byte[] tempBuf = new byte[1];
     private OutputStream out;
     private LZEncoder lz;
@@ -39,7 +41,7 @@ public class LZMAOutputStream extends FinishableOutputStream {
     private LZMAOutputStream(OutputStream out, LZMA2Options options,
                              boolean useHeader, boolean useEndMarker,
                              long expectedUncompressedSize,
-                             ArrayCache arrayCache)
+                             boolean restartable, ArrayCache arrayCache)
             throws IOException {
         if (out == null) {
             throw new NullPointerException();
@@ -51,6 +53,7 @@ public class LZMAOutputStream extends FinishableOutputStream {
                     "Invalid expected input size (less than -1)");
         }
 
+        this.restartable = restartable;
         this.useEndMarker = useEndMarker;
         this.expectedUncompressedSize = expectedUncompressedSize;
 
@@ -59,13 +62,8 @@ public class LZMAOutputStream extends FinishableOutputStream {
         this.out = out;
         rc = new RangeEncoderToStream(out);
 
-        int dictSize = options.getDictSize();
-        lzma = LZMAEncoder.getInstance(rc,
-                options.getLc(), options.getLp(), options.getPb(),
-                options.getMode(),
-                dictSize, 0, options.getNiceLen(),
-                options.getMatchFinder(), options.getDepthLimit(),
-                arrayCache);
+        dictSize = options.getDictSize();
+        lzma = LZMAEncoder.getInstance(rc, options, 0, arrayCache);
 
         lz = lzma.getLZEncoder();
 
@@ -83,22 +81,25 @@ public class LZMAOutputStream extends FinishableOutputStream {
         props = (options.getPb() * 5 + options.getLp()) * 9 + options.getLc();
 
         if (useHeader) {
-            // Props byte stores lc, lp, and pb.
-            out.write(props);
-
-            // Dictionary size is stored as a 32-bit unsigned little endian
-            // integer.
-            for (int i = 0; i < 4; ++i) {
-                out.write(dictSize & 0xFF);
-                dictSize >>>= 8;
-            }
+            writeHeader();
+        }
+    }
 
-            // Uncompressed size is stored as a 64-bit unsigned little endian
-            // integer. The max value (-1 in two's complement) indicates
-            // unknown size.
-            for (int i = 0; i < 8; ++i) {
-                out.write((int) (expectedUncompressedSize >>> (8 * i)) & 0xFF);
-            }
+    private void writeHeader() throws IOException {
+        // Props byte stores lc, lp, and pb.
+        out.write(props);
+
+        // Dictionary size is stored as a 32-bit unsigned little endian
+        // integer.
+        for (int i = 0; i < 4; ++i) {
+            out.write((dictSize >>> (8 * i)) & 0xFF);
+        }
+
+        // Uncompressed size is stored as a 64-bit unsigned little endian
+        // integer. The max value (-1 in two's complement) indicates
+        // unknown size.
+        for (int i = 0; i < 8; ++i) {
+            out.write((int) (expectedUncompressedSize >>> (8 * i)) & 0xFF);
         }
     }
 
@@ -155,7 +156,43 @@ public class LZMAOutputStream extends FinishableOutputStream {
     public LZMAOutputStream(OutputStream out, LZMA2Options options,
                             long inputSize, ArrayCache arrayCache)
             throws IOException {
-        this(out, options, true, inputSize == -1, inputSize, arrayCache);
+        this(out, options, true, inputSize == -1, inputSize, false,
+             arrayCache);
+    }
+
+    /**
+     * Creates a new compressor for the legacy .lzma file format that can
+     * be restarted.
+     * <p>
+     * This is identical to
+     * <code>LZMAOutputStream(OutputStream, LZMA2Options, long,
+     * ArrayCache)</code> except that if <code>restartable</code> is true,
+     * the encoder and its arrays are kept after <code>finish()</code>
+     * so that <code>restart</code> can reuse them. They are returned to
+     * <code>arrayCache</code> only by <code>close()</code>.
+     *
+     * @param       out         output stream to which the compressed data
+     *                          will be written
+     *
+     * @param       options     LZMA compression options; the same class
+     *                          is used here as is for LZMA2
+     *
+     * @param       inputSize   uncompressed size of the data to be compressed;
+     *                          use <code>-1</code> when unknown
+     *
+     * @param       restartable keep the encoder after <code>finish()</code>
+     *                          so that <code>restart</code> can be used
+     *
+     * @param       arrayCache  cache to be used for allocating large arrays
+     *
+     * @throws IOException may be thrown from <code>out</code>
+     */
+    public LZMAOutputStream(OutputStream out, LZMA2Options options,
+                            long inputSize, boolean restartable,
+                            ArrayCache arrayCache)
+            throws IOException {
+        this(out, options, true, inputSize == -1, inputSize, restartable,
+             arrayCache);
     }
 
     /**
@@ -207,7 +244,54 @@ public class LZMAOutputStream extends FinishableOutputStream {
     public LZMAOutputStream(OutputStream out, LZMA2Options options,
                             boolean useEndMarker, ArrayCache arrayCache)
             throws IOException {
-        this(out, options, false, useEndMarker, -1, arrayCache);
+        this(out, options, false, useEndMarker, -1, false, arrayCache);
+    }
+
+    /**
+     * Starts a new .lzma stream, header included, in the same output
+     * stream with the same options. The encoder and its arrays are reused
+     * instead of allocating new ones, so compressing many small blocks
+     * doesn't create garbage. The previous stream doesn't need to be
+     * finished; its unfinished output is simply abandoned.
+     * <p>
+     * The stream must have been created with <code>restartable</code>
+     * set to true.
+     *
+     * @param       inputSize   uncompressed size of the data to be compressed;
+     *                          use <code>-1</code> when unknown
+     *
+     * @throws XZIOException if the stream has been closed
+     *
+     * @throws IllegalStateException if the stream wasn't created as
+     *                          restartable
+     *
+     * @throws IOException may be thrown from <code>out</code>
+     */
+    public void restart(long inputSize) throws IOException {
+        if (!restartable) {
+            throw new IllegalStateException(
+                    "The stream wasn't created as restartable");
+        }
+
+        if (lzma == null) {
+            throw new XZIOException("Stream closed");
+        }
+
+        if (inputSize < -1) {
+            throw new IllegalArgumentException(
+                    "Invalid expected input size (less than -1)");
+        }
+
+        rc.reset();
+        lzma.reset();
+
+        useEndMarker = inputSize == -1;
+        expectedUncompressedSize = inputSize;
+        currentUncompressedSize = 0;
+        finished = false;
+        exception = null;
+
+        writeHeader();
     }
 
     /**
@@ -310,14 +394,18 @@ public class LZMAOutputStream extends FinishableOutputStream {
 
             finished = true;
 
-            lzma.putArraysToCache(arrayCache);
-            lzma = null;
-            lz = null;
+            if (!restartable) {
+                lzma.putArraysToCache(arrayCache);
+                lzma = null;
+                lz = null;
+            }
         }
     }
 
     /**
      * Finishes the stream and closes the underlying OutputStream.
+     * The encoder of a restartable stream is kept until then so that
+     * <code>restart</code> can reuse it.
      */
     @Override
     public void close() throws IOException {
@@ -327,6 +415,12 @@ public class LZMAOutputStream extends FinishableOutputStream {
             } catch (IOException e) {
             }
 
+            if (lzma != null) {
+                lzma.putArraysToCache(arrayCache);
+                lzma = null;
+                lz = null;
+            }
+
             try {
                 out.close();
             } catch (IOException e) {
@@ -0,0 +1,297 @@
+/*
+ * Binary Tree match finder with 2- and 3-byte hashing
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz.lz;
+
+import org.tukaani.xz.ArrayCache;
+
+import java.util.Arrays;
+
+final class BT3 extends LZEncoder {
+    private final Hash23 hash;
+    private final int[] tree;
+    private final Matches matches;
+    private final int depthLimit;
+
+    private final int cyclicSize;
+    private int cyclicPos = -1;
+    private int lzPos;
+
+    private int[] presetTree = null;
+    private int presetCyclicPos;
+    private int presetLzPos;
+
+    BT3(int dictSize, int beforeSizeMin, int readAheadMax,
+        int niceLen, int matchLenMax, int depthLimit,
+        ArrayCache arrayCache) {
+        super(dictSize, beforeSizeMin, readAheadMax, niceLen, matchLenMax,
+                arrayCache);
+
+        this.cyclicSize = dictSize + 1;
+        this.lzPos = cyclicSize;
+
+        hash = new Hash23(dictSize, arrayCache);
+        tree = arrayCache.getIntArray(cyclicSize * 2, false);
+
+        // Substracting 1 because the shortest match that this match
+        // finder can find is 2 bytes, so there's no need to reserve
+        // space for one-byte matches.
+        matches = new Matches(niceLen - 1);
+
+        this.depthLimit = depthLimit > 0 ? depthLimit : 16 + niceLen / 2;
+    }
+
+    static int getMemoryUsage(int dictSize) {
+        return Hash23.getMemoryUsage(dictSize) + dictSize / (1024 / 8) + 10;
+    }
+
+    @Override
+    public void putArraysToCache(ArrayCache arrayCache) {
+        arrayCache.putArray(tree);
+        hash.putArraysToCache(arrayCache);
+        super.putArraysToCache(arrayCache);
+    }
+
+    private int movePos() {
+        int avail = movePos(niceLen, 3);
+
+        if (avail != 0) {
+            if (++lzPos == Integer.MAX_VALUE) {
+                int normalizationOffset = Integer.MAX_VALUE - cyclicSize;
+                hash.normalize(normalizationOffset);
+                normalize(tree, cyclicSize * 2, normalizationOffset);
+                lzPos -= normalizationOffset;
+            }
+
+            if (++cyclicPos == cyclicSize) {
+                cyclicPos = 0;
+            }
+        }
+
+        return avail;
+    }
+
+    @Override
+    public Matches getMatches() {
+        matches.count = 0;
+
+        int matchLenLimit = matchLenMax;
+        int niceLenLimit = niceLen;
+        int avail = movePos();
+
+        if (avail < matchLenLimit) {
+            if (avail == 0) {
+                return matches;
+            }
+
+            matchLenLimit = avail;
+            if (niceLenLimit > avail) {
+                niceLenLimit = avail;
+            }
+        }
+
+        hash.calcHashes(buf, readPos);
+        int delta2 = lzPos - hash.getHash2Pos();
+        int currentMatch = hash.getHash3Pos();
+        hash.updateTables(lzPos);
+
+        // See if the hash from the first two bytes found a match.
+        // The hashing algorithm guarantees that if the first byte
+        // matches, also the second byte does. Matches from the tree
+        // are only used if they are longer than lenBest.
+        int lenBest = 2;
+
+        if (delta2 < cyclicSize && buf[backPos(delta2)] == buf[readPos]) {
+            lenBest = MatchLength.extend(buf, readPos, backPos(delta2),
+                                         2, matchLenLimit);
+            matches.len[0] = lenBest;
+            matches.dist[0] = delta2 - 1;
+            matches.count = 1;
+
+            // Return if it is long enough (niceLen or reached the end of
+            // the dictionary).
+            if (lenBest >= niceLenLimit) {
+                skip(niceLenLimit, currentMatch);
+                return matches;
+            }
+        }
+
+        int depth = depthLimit;
+
+        int ptr0 = (cyclicPos << 1) + 1;
+        int ptr1 = cyclicPos << 1;
+        int len0 = 0;
+        int len1 = 0;
+
+        while (true) {
+            int delta = lzPos - currentMatch;
+
+            // Return if the search depth limit has been reached or
+            // if the distance of the potential match exceeds the
+            // dictionary size.
+            if (depth-- == 0 || delta >= cyclicSize) {
+                tree[ptr0] = 0;
+                tree[ptr1] = 0;
+                return matches;
+            }
+
+            int pair = (cyclicPos - delta
+                    + (delta > cyclicPos ? cyclicSize : 0)) << 1;
+            int len = Math.min(len0, len1);
+            int back = backPos(delta);
+
+            if (buf[back + len] == buf[readPos + len]) {
+                len = MatchLength.extend(buf, readPos, back,
+                                         len + 1, matchLenLimit);
+
+                if (len > lenBest) {
+                    lenBest = len;
+                    matches.len[matches.count] = len;
+                    matches.dist[matches.count] = delta - 1;
+                    ++matches.count;
+
+                    if (len >= niceLenLimit) {
+                        tree[ptr1] = tree[pair];
+                        tree[ptr0] = tree[pair + 1];
+                        return matches;
+                    }
+                }
+            }
+
+            if ((buf[back + len] & 0xFF)
+                    < (buf[readPos + len] & 0xFF)) {
+                tree[ptr1] = currentMatch;
+                ptr1 = pair + 1;
+                currentMatch = tree[ptr1];
+                len1 = len;
+            } else {
+                tree[ptr0] = currentMatch;
+                ptr0 = pair;
+                currentMatch = tree[ptr0];
+                len0 = len;
+            }
+        }
+    }
+
+    private void skip(int niceLenLimit, int currentMatch) {
+        int depth = depthLimit;
+
+        int ptr0 = (cyclicPos << 1) + 1;
+        int ptr1 = cyclicPos << 1;
+        int len0 = 0;
+        int len1 = 0;
+
+        while (true) {
+            int delta = lzPos - currentMatch;
+
+            if (depth-- == 0 || delta >= cyclicSize) {
+                tree[ptr0] = 0;
+                tree[ptr1] = 0;
+                return;
+            }
+
+            int pair = (cyclicPos - delta
+                    + (delta > cyclicPos ? cyclicSize : 0)) << 1;
+            int len = Math.min(len0, len1);
+            int back = backPos(delta);
+
+            if (buf[back + len] == buf[readPos + len]) {
+                // No need to look for longer matches than niceLenLimit
+                // because we only are updating the tree, not returning
+                // matches found to the caller.
+                len = MatchLength.extend(buf, readPos, back,
+                                         len + 1, niceLenLimit);
+                if (len == niceLenLimit) {
+                    tree[ptr1] = tree[pair];
+                    tree[ptr0] = tree[pair + 1];
+                    return;
+                }
+            }
+
+            if ((buf[back + len] & 0xFF)
+                    < (buf[readPos + len] & 0xFF)) {
+                tree[ptr1] = currentMatch;
+                ptr1 = pair + 1;
+                currentMatch = tree[ptr1];
+                len1 = len;
+            } else {
+                tree[ptr0] = currentMatch;
+                ptr0 = pair;
+                currentMatch = tree[ptr0];
+                len0 = len;
+            }
+        }
+    }
+
+    @Override
+    public void skip(int len) {
+        while (len-- > 0) {
+            int niceLenLimit = niceLen;
+            int avail = movePos();
+
+            if (avail < niceLenLimit) {
+                if (avail == 0) {
+                    continue;
+                }
+
+                niceLenLimit = avail;
+            }
+
+            hash.calcHashes(buf, readPos);
+            int currentMatch = hash.getHash3Pos();
+            hash.updateTables(lzPos);
+
+            skip(niceLenLimit, currentMatch);
+        }
+    }
+
+    @Override
+    void savePresetState() {
+        hash.savePresetState();
+        presetTree = Arrays.copyOf(tree, (cyclicPos + 1) * 2);
+        presetCyclicPos = cyclicPos;
+        presetLzPos = lzPos;
+    }
+
+    @Override
+    void restorePresetState() {
+        hash.restorePresetState();
+
+        // Inserting new positions also rewrites the child pointers of
+        // the primed nodes, so the primed part of the tree is always
+        // copied back.
+        System.arraycopy(presetTree, 0, tree, 0, presetTree.length);
+        cyclicPos = presetCyclicPos;
+        lzPos = presetLzPos;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        matches.reset();
+
+        if (hasPresetState()) {
+            restorePresetState();
+            return;
+        }
+
+        cyclicPos = -1;
+        hash.reset();
+
+        // Positions stored in the hash tables and the tree are only used
+        // while lzPos - pos < cyclicSize. Moving lzPos forward by cyclicSize
+        // invalidates all of them without touching the arrays. They are
+        // cleared only when lzPos would get close to overflowing.
+        if (lzPos < Integer.MAX_VALUE - cyclicSize) {
+            lzPos += cyclicSize;
+        } else {
+            lzPos = cyclicSize;
+            hash.clear();
+            Arrays.fill(tree, 0);
+        }
+    }
+}
@@ -24,6 +24,10 @@ final class BT4 extends LZEncoder {
     private int cyclicPos = -1;
     private int lzPos;
 
+    private int[] presetTree = null;
+    private int presetCyclicPos;
+    private int presetLzPos;
+
     BT4(int dictSize, int beforeSizeMin, int readAheadMax,
         int niceLen, int matchLenMax, int depthLimit,
         ArrayCache arrayCache) {
@@ -105,7 +109,7 @@ final class BT4 extends LZEncoder {
         // The hashing algorithm guarantees that if the first byte
         // matches, also the second byte does, so there's no need to
         // test the second byte.
-        if (delta2 < cyclicSize && buf[readPos - delta2] == buf[readPos]) {
+        if (delta2 < cyclicSize && buf[backPos(delta2)] == buf[readPos]) {
             lenBest = 2;
             matches.len[0] = 2;
             matches.dist[0] = delta2 - 1;
@@ -117,7 +121,7 @@ final class BT4 extends LZEncoder {
         // Also here the hashing algorithm guarantees that if the first byte
         // matches, also the next two bytes do.
         if (delta2 != delta3 && delta3 < cyclicSize
-                && buf[readPos - delta3] == buf[readPos]) {
+                && buf[backPos(delta3)] == buf[readPos]) {
             lenBest = 3;
             matches.dist[matches.count++] = delta3 - 1;
             delta2 = delta3;
@@ -125,10 +129,8 @@ final class BT4 extends LZEncoder {
 
         // If a match was found, see how long it is.
         if (matches.count > 0) {
-            while (lenBest < matchLenLimit && buf[readPos + lenBest - delta2]
-                    == buf[readPos + lenBest]) {
-                ++lenBest;
-            }
+            lenBest = MatchLength.extend(buf, readPos, backPos(delta2),
+                                         lenBest, matchLenLimit);
 
             matches.len[matches.count - 1] = lenBest;
 
@@ -168,13 +170,11 @@ final class BT4 extends LZEncoder {
             int pair = (cyclicPos - delta
                     + (delta > cyclicPos ? cyclicSize : 0)) << 1;
             int len = Math.min(len0, len1);
+            int back = backPos(delta);
 
-            if (buf[readPos + len - delta] == buf[readPos + len]) {
-                while (++len < matchLenLimit) {
-                    if (buf[readPos + len - delta] != buf[readPos + len]) {
-                        break;
-                    }
-                }
+            if (buf[back + len] == buf[readPos + len]) {
+                len = MatchLength.extend(buf, readPos, back,
+                                         len + 1, matchLenLimit);
 
                 if (len > lenBest) {
                     lenBest = len;
@@ -190,7 +190,7 @@ final class BT4 extends LZEncoder {
                 }
             }
 
-            if ((buf[readPos + len - delta] & 0xFF)
+            if ((buf[back + len] & 0xFF)
                     < (buf[readPos + len] & 0xFF)) {
                 tree[ptr1] = currentMatch;
                 ptr1 = pair + 1;
@@ -225,21 +225,22 @@ final class BT4 extends LZEncoder {
             int pair = (cyclicPos - delta
                     + (delta > cyclicPos ? cyclicSize : 0)) << 1;
             int len = Math.min(len0, len1);
+            int back = backPos(delta);
 
-            if (buf[readPos + len - delta] == buf[readPos + len]) {
+            if (buf[back + len] == buf[readPos + len]) {
                 // No need to look for longer matches than niceLenLimit
                 // because we only are updating the tree, not returning
                 // matches found to the caller.
-                do {
-                    if (++len == niceLenLimit) {
-                        tree[ptr1] = tree[pair];
-                        tree[ptr0] = tree[pair + 1];
-                        return;
-                    }
-                } while (buf[readPos + len - delta] == buf[readPos + len]);
+                len = MatchLength.extend(buf, readPos, back,
+                                         len + 1, niceLenLimit);
+                if (len == niceLenLimit) {
+                    tree[ptr1] = tree[pair];
+                    tree[ptr0] = tree[pair + 1];
+                    return;
+                }
             }
 
-            if ((buf[readPos + len - delta] & 0xFF)
+            if ((buf[back + len] & 0xFF)
                     < (buf[readPos + len] & 0xFF)) {
                 tree[ptr1] = currentMatch;
                 ptr1 = pair + 1;
@@ -276,13 +277,49 @@ final class BT4 extends LZEncoder {
         }
     }
 
+    @Override
+    void savePresetState() {
+        hash.savePresetState();
+        presetTree = Arrays.copyOf(tree, (cyclicPos + 1) * 2);
+        presetCyclicPos = cyclicPos;
+        presetLzPos = lzPos;
+    }
+
+    @Override
+    void restorePresetState() {
+        hash.restorePresetState();
+
+        // Inserting new positions also rewrites the child pointers of
+        // the primed nodes, so the primed part of the tree is always
+        // copied back.
+        System.arraycopy(presetTree, 0, tree, 0, presetTree.length);
+        cyclicPos = presetCyclicPos;
+        lzPos = presetLzPos;
+    }
+
     @Override
     public void reset() {
         super.reset();
-        lzPos = cyclicSize;
-        cyclicPos = -1;
         matches.reset();
+
+        if (hasPresetState()) {
+            restorePresetState();
+            return;
+        }
+
+        cyclicPos = -1;
         hash.reset();
-        Arrays.fill(tree, 0);
+
+        // Positions stored in the hash tables and the tree are only used
+        // while lzPos - pos < cyclicSize. Moving lzPos forward by cyclicSize
+        // invalidates all of them without touching the arrays. They are
+        // cleared only when lzPos would get close to overflowing.
+        if (lzPos < Integer.MAX_VALUE - cyclicSize) {
+            lzPos += cyclicSize;
+        } else {
+            lzPos = cyclicSize;
+            hash.clear();
+            Arrays.fill(tree, 0);
+        }
     }
 }
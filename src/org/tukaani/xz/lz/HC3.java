@@ -0,0 +1,244 @@
+/*
+ * Hash Chain match finder with 2- and 3-byte hashing
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz.lz;
+
+import org.tukaani.xz.ArrayCache;
+
+import java.util.Arrays;
+
+final class HC3 extends LZEncoder {
+    private final Hash23 hash;
+    private final int[] chain;
+    private final Matches matches;
+    private final int depthLimit;
+
+    private final int cyclicSize;
+    private int cyclicPos = -1;
+    private int lzPos;
+
+    private int[] presetChain = null;
+    private int presetCyclicPos;
+    private int presetLzPos;
+
+    /**
+     * Creates a new LZEncoder with the HC3 match finder.
+     * See <code>LZEncoder.getInstance</code> for parameter descriptions.
+     */
+    HC3(int dictSize, int beforeSizeMin, int readAheadMax,
+        int niceLen, int matchLenMax, int depthLimit,
+        ArrayCache arrayCache) {
+        super(dictSize, beforeSizeMin, readAheadMax, niceLen, matchLenMax,
+                arrayCache);
+
+        hash = new Hash23(dictSize, arrayCache);
+
+        // +1 because we need dictSize bytes of history + the current byte.
+        cyclicSize = dictSize + 1;
+        chain = arrayCache.getIntArray(cyclicSize, false);
+        lzPos = cyclicSize;
+
+        // Substracting 1 because the shortest match that this match
+        // finder can find is 2 bytes, so there's no need to reserve
+        // space for one-byte matches.
+        matches = new Matches(niceLen - 1);
+
+        // Use a default depth limit if no other value was specified.
+        // The default is just something based on experimentation;
+        // it's nothing magic.
+        this.depthLimit = (depthLimit > 0) ? depthLimit : 4 + niceLen / 4;
+    }
+
+    /**
+     * Gets approximate memory usage of the match finder as kibibytes.
+     */
+    static int getMemoryUsage(int dictSize) {
+        return Hash23.getMemoryUsage(dictSize) + dictSize / (1024 / 4) + 10;
+    }
+
+    @Override
+    public void putArraysToCache(ArrayCache arrayCache) {
+        arrayCache.putArray(chain);
+        hash.putArraysToCache(arrayCache);
+        super.putArraysToCache(arrayCache);
+    }
+
+    /**
+     * Moves to the next byte, checks that there is enough available space,
+     * and possibly normalizes the hash tables and the hash chain.
+     *
+     * @return number of bytes available, including the current byte
+     */
+    private int movePos() {
+        int avail = movePos(3, 3);
+
+        if (avail != 0) {
+            if (++lzPos == Integer.MAX_VALUE) {
+                int normalizationOffset = Integer.MAX_VALUE - cyclicSize;
+                hash.normalize(normalizationOffset);
+                normalize(chain, cyclicSize, normalizationOffset);
+                lzPos -= normalizationOffset;
+            }
+
+            if (++cyclicPos == cyclicSize) {
+                cyclicPos = 0;
+            }
+        }
+
+        return avail;
+    }
+
+    @Override
+    public Matches getMatches() {
+        matches.count = 0;
+        int matchLenLimit = matchLenMax;
+        int niceLenLimit = niceLen;
+        int avail = movePos();
+
+        if (avail < matchLenLimit) {
+            if (avail == 0) {
+                return matches;
+            }
+
+            matchLenLimit = avail;
+            if (niceLenLimit > avail) {
+                niceLenLimit = avail;
+            }
+        }
+
+        hash.calcHashes(buf, readPos);
+        int delta2 = lzPos - hash.getHash2Pos();
+        int currentMatch = hash.getHash3Pos();
+        hash.updateTables(lzPos);
+
+        chain[cyclicPos] = currentMatch;
+
+        // See if the hash from the first two bytes found a match. The
+        // hashing algorithm guarantees that if the first byte matches,
+        // also the second byte does. Matches from the hash chain are
+        // at least three bytes long for the same reason.
+        int lenBest = 2;
+
+        if (delta2 < cyclicSize && buf[backPos(delta2)] == buf[readPos]) {
+            lenBest = MatchLength.extend(buf, readPos, backPos(delta2),
+                                         2, matchLenLimit);
+            matches.len[0] = lenBest;
+            matches.dist[0] = delta2 - 1;
+            matches.count = 1;
+
+            // Return if it is long enough (niceLen or reached the end of
+            // the dictionary).
+            if (lenBest >= niceLenLimit) {
+                return matches;
+            }
+        }
+
+        int depth = depthLimit;
+
+        while (true) {
+            int delta = lzPos - currentMatch;
+
+            // Return if the search depth limit has been reached or
+            // if the distance of the potential match exceeds the
+            // dictionary size.
+            if (depth-- == 0 || delta >= cyclicSize) {
+                return matches;
+            }
+
+            currentMatch = chain[cyclicPos - delta
+                    + (delta > cyclicPos ? cyclicSize : 0)];
+            int back = backPos(delta);
+
+            // Test the first byte and the first new byte that would give us
+            // a match that is at least one byte longer than lenBest. This
+            // too short matches get quickly skipped.
+            if (buf[back + lenBest] == buf[readPos + lenBest]
+                    && buf[back] == buf[readPos]) {
+                // Calculate the length of the match.
+                int len = MatchLength.extend(buf, readPos, back,
+                                             1, matchLenLimit);
+
+                // Use the match if and only if it is better than the longest
+                // match found so far.
+                if (len > lenBest) {
+                    lenBest = len;
+                    matches.len[matches.count] = len;
+                    matches.dist[matches.count] = delta - 1;
+                    ++matches.count;
+
+                    // Return if it is long enough (niceLen or reached the
+                    // end of the dictionary).
+                    if (len >= niceLenLimit) {
+                        return matches;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void skip(int len) {
+        assert len >= 0;
+
+        while (len-- > 0) {
+            if (movePos() != 0) {
+                // Update the hash chain and hash tables.
+                hash.calcHashes(buf, readPos);
+                chain[cyclicPos] = hash.getHash3Pos();
+                hash.updateTables(lzPos);
+            }
+        }
+    }
+
+    @Override
+    void savePresetState() {
+        hash.savePresetState();
+        presetChain = Arrays.copyOf(chain, cyclicPos + 1);
+        presetCyclicPos = cyclicPos;
+        presetLzPos = lzPos;
+    }
+
+    @Override
+    void restorePresetState() {
+        hash.restorePresetState();
+
+        // New positions only write their own chain entries, so the primed
+        // part of the chain is intact unless cyclicPos wrapped around.
+        if (lzPos - presetLzPos >= cyclicSize - presetCyclicPos - 1) {
+            System.arraycopy(presetChain, 0, chain, 0, presetChain.length);
+        }
+
+        cyclicPos = presetCyclicPos;
+        lzPos = presetLzPos;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        matches.reset();
+
+        if (hasPresetState()) {
+            restorePresetState();
+            return;
+        }
+
+        cyclicPos = -1;
+        hash.reset();
+
+        // Positions stored in the hash tables and the hash chain are only used
+        // while lzPos - pos < cyclicSize. Moving lzPos forward by cyclicSize
+        // invalidates all of them without touching the arrays. They are
+        // cleared only when lzPos would get close to overflowing.
+        if (lzPos < Integer.MAX_VALUE - cyclicSize) {
+            lzPos += cyclicSize;
+        } else {
+            lzPos = cyclicSize;
+            hash.clear();
+            Arrays.fill(chain, 0);
+        }
+    }
+}
@@ -24,6 +24,10 @@ final class HC4 extends LZEncoder {
     private int cyclicPos = -1;
     private int lzPos;
 
+    private int[] presetChain = null;
+    private int presetCyclicPos;
+    private int presetLzPos;
+
     /**
      * Creates a new LZEncoder with the HC4 match finder.
      * See <code>LZEncoder.getInstance</code> for parameter descriptions.
@@ -123,7 +127,7 @@ final class HC4 extends LZEncoder {
         // The hashing algorithm guarantees that if the first byte
         // matches, also the second byte does, so there's no need to
         // test the second byte.
-        if (delta2 < cyclicSize && buf[readPos - delta2] == buf[readPos]) {
+        if (delta2 < cyclicSize && buf[backPos(delta2)] == buf[readPos]) {
             lenBest = 2;
             matches.len[0] = 2;
             matches.dist[0] = delta2 - 1;
@@ -135,7 +139,7 @@ final class HC4 extends LZEncoder {
         // Also here the hashing algorithm guarantees that if the first byte
         // matches, also the next two bytes do.
         if (delta2 != delta3 && delta3 < cyclicSize
-                && buf[readPos - delta3] == buf[readPos]) {
+                && buf[backPos(delta3)] == buf[readPos]) {
             lenBest = 3;
             matches.dist[matches.count++] = delta3 - 1;
             delta2 = delta3;
@@ -143,10 +147,8 @@ final class HC4 extends LZEncoder {
 
         // If a match was found, see how long it is.
         if (matches.count > 0) {
-            while (lenBest < matchLenLimit && buf[readPos + lenBest - delta2]
-                    == buf[readPos + lenBest]) {
-                ++lenBest;
-            }
+            lenBest = MatchLength.extend(buf, readPos, backPos(delta2),
+                                         lenBest, matchLenLimit);
 
             matches.len[matches.count - 1] = lenBest;
 
@@ -177,19 +179,16 @@ final class HC4 extends LZEncoder {
 
             currentMatch = chain[cyclicPos - delta
                     + (delta > cyclicPos ? cyclicSize : 0)];
+            int back = backPos(delta);
 
             // Test the first byte and the first new byte that would give us
             // a match that is at least one byte longer than lenBest. This
             // too short matches get quickly skipped.
-            if (buf[readPos + lenBest - delta] == buf[readPos + lenBest]
-                    && buf[readPos - delta] == buf[readPos]) {
+            if (buf[back + lenBest] == buf[readPos + lenBest]
+                    && buf[back] == buf[readPos]) {
                 // Calculate the length of the match.
-                int len = 0;
-                while (++len < matchLenLimit) {
-                    if (buf[readPos + len - delta] != buf[readPos + len]) {
-                        break;
-                    }
-                }
+                int len = MatchLength.extend(buf, readPos, back,
+                                             1, matchLenLimit);
 
                 // Use the match if and only if it is better than the longest
                 // match found so far.
@@ -223,13 +222,51 @@ final class HC4 extends LZEncoder {
         }
     }
 
+    @Override
+    void savePresetState() {
+        hash.savePresetState();
+        presetChain = Arrays.copyOf(chain, cyclicPos + 1);
+        presetCyclicPos = cyclicPos;
+        presetLzPos = lzPos;
+    }
+
+    @Override
+    void restorePresetState() {
+        hash.restorePresetState();
+
+        // New positions only write their own chain entries, so the primed
+        // part of the chain is intact unless cyclicPos wrapped around.
+        if (lzPos - presetLzPos >= cyclicSize - presetCyclicPos - 1) {
+            System.arraycopy(presetChain, 0, chain, 0, presetChain.length);
+        }
+
+        cyclicPos = presetCyclicPos;
+        lzPos = presetLzPos;
+    }
+
     @Override
     public void reset() {
         super.reset();
-        lzPos = cyclicSize;
-        cyclicPos = -1;
         matches.reset();
+
+        if (hasPresetState()) {
+            restorePresetState();
+            return;
+        }
+
+        cyclicPos = -1;
         hash.reset();
-        Arrays.fill(chain, 0);
+
+        // Positions stored in the hash tables and the hash chain are only used
+        // while lzPos - pos < cyclicSize. Moving lzPos forward by cyclicSize
+        // invalidates all of them without touching the arrays. They are
+        // cleared only when lzPos would get close to overflowing.
+        if (lzPos < Integer.MAX_VALUE - cyclicSize) {
+            lzPos += cyclicSize;
+        } else {
+            lzPos = cyclicSize;
+            hash.clear();
+            Arrays.fill(chain, 0);
+        }
     }
 }
@@ -0,0 +1,156 @@
+/*
+ * Hash Single match finder with 4-byte hashing
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz.lz;
+
+import org.tukaani.xz.ArrayCache;
+
+/**
+ * Match finder that probes a single candidate: the most recent position
+ * with the same 4-byte hash. There is no hash chain or tree, so both
+ * finding and skipping cost one table lookup per byte. Used by the
+ * negative (ultra-fast) presets together with the greedy encoder mode.
+ */
+final class HS4 extends LZEncoder {
+    private final Hash4 hash;
+    private final Matches matches;
+
+    private final int cyclicSize;
+    private int lzPos;
+
+    private int presetLzPos;
+
+    /**
+     * Creates a new LZEncoder with the HS4 match finder.
+     * See <code>LZEncoder.getInstance</code> for parameter descriptions.
+     * <code>depthLimit</code> is ignored because only one candidate
+     * is ever checked.
+     */
+    HS4(int dictSize, int beforeSizeMin, int readAheadMax,
+        int niceLen, int matchLenMax, int depthLimit,
+        ArrayCache arrayCache) {
+        super(dictSize, beforeSizeMin, readAheadMax, niceLen, matchLenMax,
+                arrayCache);
+
+        hash = new Hash4(dictSize, arrayCache);
+
+        // +1 because we need dictSize bytes of history + the current byte.
+        cyclicSize = dictSize + 1;
+        lzPos = cyclicSize;
+
+        matches = new Matches(1);
+    }
+
+    /**
+     * Gets approximate memory usage of the match finder as kibibytes.
+     */
+    static int getMemoryUsage(int dictSize) {
+        return Hash4.getMemoryUsage(dictSize) + 10;
+    }
+
+    @Override
+    public void putArraysToCache(ArrayCache arrayCache) {
+        hash.putArraysToCache(arrayCache);
+        super.putArraysToCache(arrayCache);
+    }
+
+    /**
+     * Moves to the next byte, checks that there is enough available space,
+     * and possibly normalizes the hash table.
+     *
+     * @return number of bytes available, including the current byte
+     */
+    private int movePos() {
+        int avail = movePos(4, 4);
+
+        if (avail != 0 && ++lzPos == Integer.MAX_VALUE) {
+            int normalizationOffset = Integer.MAX_VALUE - cyclicSize;
+            hash.normalize(normalizationOffset);
+            lzPos -= normalizationOffset;
+        }
+
+        return avail;
+    }
+
+    @Override
+    public Matches getMatches() {
+        matches.count = 0;
+        int matchLenLimit = matchLenMax;
+        int avail = movePos();
+
+        if (avail < matchLenLimit) {
+            if (avail == 0) {
+                return matches;
+            }
+
+            matchLenLimit = avail;
+        }
+
+        hash.calcHashes(buf, readPos);
+        int delta = lzPos - hash.getHash4Pos();
+        hash.updateTables(lzPos);
+
+        // Different 4-byte sequences may share a slot, so the candidate
+        // is verified from its first byte.
+        if (delta < cyclicSize) {
+            int len = MatchLength.extend(buf, readPos, backPos(delta),
+                                         0, matchLenLimit);
+            if (len >= 2) {
+                matches.len[0] = len;
+                matches.dist[0] = delta - 1;
+                matches.count = 1;
+            }
+        }
+
+        return matches;
+    }
+
+    @Override
+    public void skip(int len) {
+        assert len >= 0;
+
+        while (len-- > 0) {
+            if (movePos() != 0) {
+                hash.calcHashes(buf, readPos);
+                hash.updateTables(lzPos);
+            }
+        }
+    }
+
+    @Override
+    void savePresetState() {
+        hash.savePresetState();
+        presetLzPos = lzPos;
+    }
+
+    @Override
+    void restorePresetState() {
+        hash.restorePresetState();
+        lzPos = presetLzPos;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        matches.reset();
+
+        if (hasPresetState()) {
+            restorePresetState();
+            return;
+        }
+
+        hash.reset();
+
+        // See HC4.reset().
+        if (lzPos < Integer.MAX_VALUE - cyclicSize) {
+            lzPos += cyclicSize;
+        } else {
+            lzPos = cyclicSize;
+            hash.clear();
+        }
+    }
+}
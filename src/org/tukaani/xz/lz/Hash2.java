@@ -0,0 +1,89 @@
+/*
+ * 2-byte hashing
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz.lz;
+
+import org.tukaani.xz.ArrayCache;
+
+import java.util.Arrays;
+
+/**
+ * Direct 2-byte "hashing": the two bytes are used as the table index,
+ * so a table hit always matches at least two bytes.
+ */
+final class Hash2 {
+    private static final int HASH_2_SIZE = 1 << 16;
+
+    private final int[] hash2Table;
+    private int hash2Value = 0;
+
+    private HashJournal journal = null;
+
+    Hash2(ArrayCache arrayCache) {
+        hash2Table = arrayCache.getIntArray(HASH_2_SIZE, true);
+    }
+
+    /**
+     * Resets the hash value but keeps the table. See Hash234.reset().
+     */
+    void reset() {
+        hash2Value = 0;
+    }
+
+    /**
+     * Clears the table too.
+     */
+    void clear() {
+        Arrays.fill(hash2Table, 0);
+        reset();
+    }
+
+    void savePresetState() {
+        journal = new HashJournal(hash2Table);
+    }
+
+    void restorePresetState() {
+        journal.restore();
+        reset();
+    }
+
+    static int getMemoryUsage() {
+        // Size of the hash array + a little extra
+        return HASH_2_SIZE / (1024 / 4) + 4;
+    }
+
+    static int getPresetMemoryUsage() {
+        // Table copy + the journal
+        return getMemoryUsage() + HashJournal.getMemoryUsage(1);
+    }
+
+    void putArraysToCache(ArrayCache arrayCache) {
+        arrayCache.putArray(hash2Table);
+    }
+
+    void calcHashes(byte[] buf, int off) {
+        hash2Value = (buf[off] & 0xFF) | ((buf[off + 1] & 0xFF) << 8);
+    }
+
+    int getHash2Pos() {
+        return hash2Table[hash2Value];
+    }
+
+    void updateTables(int pos) {
+        hash2Table[hash2Value] = pos;
+
+        if (journal != null)
+            journal.record(hash2Value);
+    }
+
+    void normalize(int normalizationOffset) {
+        LZEncoder.normalize(hash2Table, HASH_2_SIZE, normalizationOffset);
+
+        if (journal != null)
+            journal.overflow();
+    }
+}
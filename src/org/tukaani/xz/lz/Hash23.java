@@ -0,0 +1,130 @@
+/*
+ * 2- and 3-byte hashing
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz.lz;
+
+import org.tukaani.xz.ArrayCache;
+
+import java.util.Arrays;
+
+final class Hash23 extends CRC32Hash {
+    private static final int HASH_2_SIZE = 1 << 10;
+    private static final int HASH_2_MASK = HASH_2_SIZE - 1;
+
+    private final int hash3Mask;
+
+    private final int[] hash2Table;
+    private final int[] hash3Table;
+    private final int hash3Size;
+
+    private int hash2Value = 0;
+    private int hash3Value = 0;
+
+    private HashJournal journal = null;
+
+    Hash23(int dictSize, ArrayCache arrayCache) {
+        hash2Table = arrayCache.getIntArray(HASH_2_SIZE, true);
+
+        hash3Size = getHash3Size(dictSize);
+        hash3Table = arrayCache.getIntArray(hash3Size, true);
+        hash3Mask = hash3Size - 1;
+    }
+
+    /**
+     * Resets the hash values but keeps the tables. The match finders
+     * invalidate the stored positions by moving their own position
+     * counter forward instead of clearing the tables.
+     */
+    void reset() {
+        hash2Value = 0;
+        hash3Value = 0;
+    }
+
+    /**
+     * Clears the tables too.
+     */
+    void clear() {
+        Arrays.fill(hash2Table, 0);
+        Arrays.fill(hash3Table, 0);
+        reset();
+    }
+
+    /**
+     * Saves copies of the tables. restorePresetState() brings them back
+     * by undoing the journaled updates.
+     */
+    void savePresetState() {
+        journal = new HashJournal(hash2Table, hash3Table);
+    }
+
+    void restorePresetState() {
+        journal.restore();
+        reset();
+    }
+
+    /**
+     * The 3-byte table is sized like the 4-byte table of Hash234, so it
+     * always has at least 2^16 entries. That keeps the low 16 bits of
+     * the hash, which hold the second and third bytes once the first
+     * byte matches; the match finders rely on this for their minimum
+     * match lengths. There are only 2^24 different 3-byte sequences, so
+     * a bigger table would mostly stay empty. The cap at 2^24 entries
+     * limits the memory usage with big dictionaries.
+     */
+    static int getHash3Size(int dictSize) {
+        return Math.min(Hash234.getHash4Size(dictSize), 1 << 24);
+    }
+
+    static int getMemoryUsage(int dictSize) {
+        // Sizes of the hash arrays + a little extra
+        return (HASH_2_SIZE + getHash3Size(dictSize)) / (1024 / 4) + 4;
+    }
+
+    static int getPresetMemoryUsage(int dictSize) {
+        // Table copies + the journal
+        return getMemoryUsage(dictSize) + HashJournal.getMemoryUsage(2);
+    }
+
+    void putArraysToCache(ArrayCache arrayCache) {
+        arrayCache.putArray(hash3Table);
+        arrayCache.putArray(hash2Table);
+    }
+
+    void calcHashes(byte[] buf, int off) {
+        int temp = crcTable[buf[off] & 0xFF] ^ (buf[off + 1] & 0xFF);
+        hash2Value = temp & HASH_2_MASK;
+
+        temp ^= (buf[off + 2] & 0xFF) << 8;
+        hash3Value = temp & hash3Mask;
+    }
+
+    int getHash2Pos() {
+        return hash2Table[hash2Value];
+    }
+
+    int getHash3Pos() {
+        return hash3Table[hash3Value];
+    }
+
+    void updateTables(int pos) {
+        hash2Table[hash2Value] = pos;
+        hash3Table[hash3Value] = pos;
+
+        if (journal != null) {
+            journal.record(hash2Value);
+            journal.record(hash3Value);
+        }
+    }
+
+    void normalize(int normalizationOffset) {
+        LZEncoder.normalize(hash2Table, HASH_2_SIZE, normalizationOffset);
+        LZEncoder.normalize(hash3Table, hash3Size, normalizationOffset);
+
+        if (journal != null)
+            journal.overflow();
+    }
+}
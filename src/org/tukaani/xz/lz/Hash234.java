@@ -32,6 +32,8 @@ final class Hash234 extends CRC32Hash {
     private int hash3Value = 0;
     private int hash4Value = 0;
 
+    private HashJournal journal = null;
+
     Hash234(int dictSize, ArrayCache arrayCache) {
         hash2Table = arrayCache.getIntArray(HASH_2_SIZE, true);
         hash3Table = arrayCache.getIntArray(HASH_3_SIZE, true);
@@ -41,15 +43,40 @@ final class Hash234 extends CRC32Hash {
         hash4Mask = hash4Size - 1;
     }
 
+    /**
+     * Resets the hash values but keeps the tables. The match finders
+     * invalidate the stored positions by moving their own position
+     * counter forward instead of clearing the tables.
+     */
     void reset() {
-        Arrays.fill(hash2Table, 0);
-        Arrays.fill(hash3Table, 0);
-        Arrays.fill(hash4Table, 0);
         hash2Value = 0;
         hash3Value = 0;
         hash4Value = 0;
     }
 
+    /**
+     * Clears the tables too.
+     */
+    void clear() {
+        Arrays.fill(hash2Table, 0);
+        Arrays.fill(hash3Table, 0);
+        Arrays.fill(hash4Table, 0);
+        reset();
+    }
+
+    /**
+     * Saves copies of the tables. restorePresetState() brings them back
+     * by undoing the journaled updates.
+     */
+    void savePresetState() {
+        journal = new HashJournal(hash2Table, hash3Table, hash4Table);
+    }
+
+    void restorePresetState() {
+        journal.restore();
+        reset();
+    }
+
     static int getHash4Size(int dictSize) {
         int h = dictSize - 1;
         h |= h >>> 1;
@@ -70,6 +97,11 @@ final class Hash234 extends CRC32Hash {
                 / (1024 / 4) + 4;
     }
 
+    static int getPresetMemoryUsage(int dictSize) {
+        // Table copies + the journal
+        return getMemoryUsage(dictSize) + HashJournal.getMemoryUsage(3);
+    }
+
     void putArraysToCache(ArrayCache arrayCache) {
         arrayCache.putArray(hash4Table);
         arrayCache.putArray(hash3Table);
@@ -103,11 +135,20 @@ final class Hash234 extends CRC32Hash {
         hash2Table[hash2Value] = pos;
         hash3Table[hash3Value] = pos;
         hash4Table[hash4Value] = pos;
+
+        if (journal != null) {
+            journal.record(hash2Value);
+            journal.record(hash3Value);
+            journal.record(hash4Value);
+        }
     }
 
     void normalize(int normalizationOffset) {
         LZEncoder.normalize(hash2Table, HASH_2_SIZE, normalizationOffset);
         LZEncoder.normalize(hash3Table, HASH_3_SIZE, normalizationOffset);
         LZEncoder.normalize(hash4Table, hash4Size, normalizationOffset);
+
+        if (journal != null)
+            journal.overflow();
     }
 }
@@ -0,0 +1,108 @@
+/*
+ * 4-byte hashing
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz.lz;
+
+import org.tukaani.xz.ArrayCache;
+
+import java.util.Arrays;
+
+/**
+ * Single 4-byte hash table for HS4. The table is kept small so that it
+ * stays in the CPU caches; a miss only costs a match, not correctness.
+ */
+final class Hash4 extends CRC32Hash {
+    /**
+     * Upper limit of the table size. 64 Ki slots take 256 KiB.
+     */
+    private static final int HASH_4_SIZE_MAX = 1 << 16;
+
+    private final int hash4Mask;
+    private final int[] hash4Table;
+    private final int hash4Size;
+    private int hash4Value = 0;
+
+    private HashJournal journal = null;
+
+    Hash4(int dictSize, ArrayCache arrayCache) {
+        hash4Size = getHash4Size(dictSize);
+        hash4Table = arrayCache.getIntArray(hash4Size, true);
+        hash4Mask = hash4Size - 1;
+    }
+
+    /**
+     * Resets the hash value but keeps the table. See Hash234.reset().
+     */
+    void reset() {
+        hash4Value = 0;
+    }
+
+    /**
+     * Clears the table too.
+     */
+    void clear() {
+        Arrays.fill(hash4Table, 0);
+        reset();
+    }
+
+    void savePresetState() {
+        journal = new HashJournal(hash4Table);
+    }
+
+    void restorePresetState() {
+        journal.restore();
+        reset();
+    }
+
+    /**
+     * One slot per four bytes of dictionary, at least 4 Ki and at most
+     * <code>HASH_4_SIZE_MAX</code> slots.
+     */
+    static int getHash4Size(int dictSize) {
+        int h = Integer.highestOneBit(Math.max(dictSize, 1) - 1) >>> 1;
+        return Math.max(1 << 12, Math.min(h, HASH_4_SIZE_MAX));
+    }
+
+    static int getMemoryUsage(int dictSize) {
+        // Size of the hash array + a little extra
+        return getHash4Size(dictSize) / (1024 / 4) + 4;
+    }
+
+    static int getPresetMemoryUsage(int dictSize) {
+        // Table copy + the journal
+        return getMemoryUsage(dictSize) + HashJournal.getMemoryUsage(1);
+    }
+
+    void putArraysToCache(ArrayCache arrayCache) {
+        arrayCache.putArray(hash4Table);
+    }
+
+    void calcHashes(byte[] buf, int off) {
+        int temp = crcTable[buf[off] & 0xFF] ^ (buf[off + 1] & 0xFF);
+        temp ^= (buf[off + 2] & 0xFF) << 8;
+        temp ^= crcTable[buf[off + 3] & 0xFF] << 5;
+        hash4Value = temp & hash4Mask;
+    }
+
+    int getHash4Pos() {
+        return hash4Table[hash4Value];
+    }
+
+    void updateTables(int pos) {
+        hash4Table[hash4Value] = pos;
+
+        if (journal != null)
+            journal.record(hash4Value);
+    }
+
+    void normalize(int normalizationOffset) {
+        LZEncoder.normalize(hash4Table, hash4Size, normalizationOffset);
+
+        if (journal != null)
+            journal.overflow();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * HashJournal
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz.lz;
+
+/**
+ * Keeps copies of the hash tables at the preset state and journals the
+ * slots written after it, so that restoring the preset state only has to
+ * undo those slots instead of copying the whole tables.
+ */
+final class HashJournal {
+    /**
+     * Number of positions whose table updates are journaled after
+     * restoring the preset state. Longer inputs restore the whole tables.
+     */
+    private static final int JOURNAL_POSITIONS = 1 << 13;
+
+    private final int[][] tables;
+    private final int[][] presetTables;
+
+    /**
+     * Slots written since the preset state was saved or restored, one
+     * per table per position. size > journal.length means the journal
+     * overflowed.
+     */
+    private final int[] journal;
+    private int size = 0;
+
+    /**
+     * Saves copies of the given tables. Each updated position must then
+     * record() one slot per table, in the same order as the tables here.
+     */
+    HashJournal(int[]... tables) {
+        this.tables = tables;
+        presetTables = new int[tables.length][];
+        for (int i = 0; i < tables.length; ++i)
+            presetTables[i] = tables[i].clone();
+
+        journal = new int[JOURNAL_POSITIONS * tables.length];
+    }
+
+    /**
+     * Gets the memory usage of the journal itself in kibibytes. The table
+     * copies are as big as the tables.
+     */
+    static int getMemoryUsage(int tableCount) {
+        return JOURNAL_POSITIONS * tableCount / (1024 / 4);
+    }
+
+    void record(int slot) {
+        // The journal length is a multiple of the table count, so
+        // the slots of one position either all fit or all overflow.
+        if (size < journal.length)
+            journal[size++] = slot;
+        else
+            size = journal.length + 1;
+    }
+
+    /**
+     * Marks the journal overflowed after a change that touched every
+     * slot, like normalization.
+     */
+    void overflow() {
+        size = journal.length + 1;
+    }
+
+    void restore() {
+        if (size > journal.length) {
+            for (int i = 0; i < tables.length; ++i)
+                System.arraycopy(presetTables[i], 0, tables[i], 0,
+                                 tables[i].length);
+        } else {
+            int t = 0;
+            for (int i = 0; i < size; ++i) {
+                int slot = journal[i];
+                tables[t][slot] = presetTables[t][slot];
+
+                if (++t == tables.length)
+                    t = 0;
+            }
+        }
+
+        size = 0;
+    }
+}
@@ -15,6 +15,7 @@ import org.tukaani.xz.CorruptedInputException;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Objects;
 
@@ -29,42 +30,99 @@ public final class LZDecoder {
     private int pendingDist = 0;
     private final ArrayCache arrayCache;
 
+    /**
+     * Preset dictionary that every reset starts from, or null.
+     */
+    private byte[] presetDict = null;
+
+    /**
+     * Size of the preset dictionary tail that is still intact at the
+     * beginning of buf, or -1 if it has to be copied again. Decoded data
+     * only overwrites it after pos wraps around.
+     */
+    private int loadedPresetSize = -1;
+
     public LZDecoder(int dictSize, byte[] presetDict, ArrayCache arrayCache) {
         bufSize = dictSize;
         buf = arrayCache.getByteArray(bufSize, false);
         this.arrayCache = arrayCache;
+        this.presetDict = presetDict;
+        loadPresetDict();
+    }
 
-        if (presetDict != null) {
-            pos = Math.min(presetDict.length, dictSize);
-            full = pos;
-            start = pos;
-            System.arraycopy(presetDict, presetDict.length - pos, buf, 0, pos);
+    /**
+     * Sets the preset dictionary used from the next reset on. The array
+     * must not be modified while it is in use since it is copied into
+     * the buffer only when the copy there has been overwritten.
+     */
+    public void setPresetDict(byte[] presetDict) {
+        if (this.presetDict != presetDict) {
+            this.presetDict = presetDict;
+            loadedPresetSize = -1;
         }
     }
 
     public void reset() {
-        start = 0;
-        pos = 0;
-        full = 0;
         limit = 0;
         pendingLen = 0;
         pendingDist = 0;
-        buf[bufSize - 1] = 0x00;
+        loadPresetDict();
     }
 
     public void reset(int newBufferSize) {
-        start = 0;
-        pos = 0;
-        full = 0;
         limit = 0;
         pendingLen = 0;
         pendingDist = 0;
         if (newBufferSize > buf.length) {
             buf = arrayCache.getByteArray(newBufferSize, false);
+            loadedPresetSize = -1;
         }
 
         bufSize = newBufferSize;
-        buf[bufSize - 1] = 0x00;
+        loadPresetDict();
+    }
+
+    /**
+     * Like <code>reset(int)</code> but also releases the buffer back to
+     * the array cache and allocates a smaller one if the current buffer
+     * is bigger than <code>newBufferSize</code>.
+     */
+    public void shrink(int newBufferSize) {
+        if (buf.length > newBufferSize) {
+            arrayCache.putArray(buf);
+            buf = arrayCache.getByteArray(newBufferSize, false);
+            loadedPresetSize = -1;
+        }
+
+        reset(newBufferSize);
+    }
+
+    /**
+     * Sets the positions to the beginning of a stream, after the preset
+     * dictionary if there is one. The dictionary is copied only if the
+     * previous copy was overwritten or a different tail of it fits into
+     * the buffer now.
+     */
+    private void loadPresetDict() {
+        int copySize = 0;
+
+        if (presetDict != null) {
+            copySize = Math.min(presetDict.length, bufSize);
+
+            if (loadedPresetSize != copySize) {
+                System.arraycopy(presetDict, presetDict.length - copySize,
+                        buf, 0, copySize);
+                loadedPresetSize = copySize;
+            }
+        }
+
+        start = copySize;
+        pos = copySize;
+        full = copySize;
+
+        if (copySize < bufSize) {
+            buf[bufSize - 1] = 0x00;
+        }
     }
 
     @Override
@@ -82,6 +140,15 @@ public final class LZDecoder {
         return result;
     }
 
+    /**
+     * Gets the size of the allocated dictionary buffer. This may be bigger
+     * than the dictionary size in use since <code>reset(int)</code> only
+     * ever grows the buffer.
+     */
+    public int getBufferCapacity() {
+        return buf.length;
+    }
+
     public void putArraysToCache(ArrayCache arrayCache) {
         arrayCache.putArray(buf);
     }
@@ -199,6 +266,7 @@ public final class LZDecoder {
         int copySize = pos - start;
         if (pos == bufSize) {
             pos = 0;
+            loadedPresetSize = -1;
         }
 
         System.arraycopy(buf, start, out, outOff, copySize);
@@ -206,4 +274,23 @@ public final class LZDecoder {
 
         return copySize;
     }
+
+    /**
+     * Copies the newly decoded data into a (heap or direct) ByteBuffer
+     * starting at its position. The buffer must have room for the data.
+     *
+     * @return      the number of bytes copied
+     */
+    public int flush(ByteBuffer out) {
+        int copySize = pos - start;
+        if (pos == bufSize) {
+            pos = 0;
+            loadedPresetSize = -1;
+        }
+
+        out.put(buf, start, copySize);
+        start = pos;
+
+        return copySize;
+    }
 }
@@ -14,14 +14,34 @@ import org.tukaani.xz.ArrayCache;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public abstract class LZEncoder {
+    public static final int MF_HC3 = 0x03;
     public static final int MF_HC4 = 0x04;
+    public static final int MF_BT2 = 0x12;
+    public static final int MF_BT3 = 0x13;
     public static final int MF_BT4 = 0x14;
+
+    /**
+     * Single-probe 4-byte hash. This one has no liblzma counterpart.
+     */
+    public static final int MF_HS4 = 0x24;
     final int matchLenMax;
     final int niceLen;
+    /**
+     * The window is a ring of <code>ringSize</code> bytes followed by
+     * a mirror of its first <code>keepSizeAfter</code> bytes. Positions
+     * grow linearly and are wrapped back by <code>ringSize</code> once
+     * <code>readPos</code> has passed the end of the ring, so no data is
+     * ever moved. Thanks to the mirror, the bytes from any position up to
+     * <code>keepSizeAfter</code> bytes forward are contiguous in
+     * <code>buf</code>; only positions before the current byte may have
+     * to be wrapped, see <code>backPos</code>.
+     */
     final byte[] buf;
-    final int bufSize; // To avoid buf.length with an array-cached buf.
+    final int ringSize;
     /**
      * Number of bytes to keep available before the current byte
      * when moving the LZ window.
@@ -35,27 +55,60 @@ public abstract class LZEncoder {
      */
     private final int keepSizeAfter;
     int readPos = -1;
-    private int readLimit = -1;
-    private boolean finishing = false;
-    private int writePos = 0;
-    private int pendingSize = 0;
+    int readLimit = -1;
+    boolean finishing = false;
+    int writePos = 0;
+    int pendingSize = 0;
+
+    /**
+     * Number of positions that the match finder is ahead of the encoder
+     * when they run in different threads, see <code>LZPipeline</code>.
+     * The window is wrapped and the history kept based on the position
+     * of the encoder.
+     */
+    int encoderLag = 0;
+
+    /**
+     * Window contents and positions right after priming with a preset
+     * dictionary that survives reset(). null if there is no such
+     * dictionary.
+     */
+    private byte[] presetWindow = null;
+    private int presetReadPos;
+    private int presetReadLimit;
+    private int presetPendingSize;
+    private boolean windowWrapped = false;
 
     /**
      * Creates a new LZEncoder. See <code>getInstance</code>.
      */
     LZEncoder(int dictSize, int extraSizeBefore, int extraSizeAfter,
               int niceLen, int matchLenMax, ArrayCache arrayCache) {
-        bufSize = getBufSize(dictSize, extraSizeBefore, extraSizeAfter,
+        ringSize = getRingSize(dictSize, extraSizeBefore, extraSizeAfter,
                 matchLenMax);
-        buf = arrayCache.getByteArray(bufSize, false);
 
         this.keepSizeBefore = extraSizeBefore + dictSize;
         this.keepSizeAfter = extraSizeAfter + matchLenMax;
 
+        buf = arrayCache.getByteArray(ringSize + keepSizeAfter, false);
+
         this.matchLenMax = matchLenMax;
         this.niceLen = niceLen;
     }
 
+    /**
+     * Creates a new LZEncoder that shares the window of <code>mf</code>.
+     * See <code>LZPipeline</code>.
+     */
+    LZEncoder(LZEncoder mf) {
+        buf = mf.buf;
+        ringSize = mf.ringSize;
+        keepSizeBefore = mf.keepSizeBefore;
+        keepSizeAfter = mf.keepSizeAfter;
+        matchLenMax = mf.matchLenMax;
+        niceLen = mf.niceLen;
+    }
+
     static void normalize(int[] positions, int positionsCount,
                           int normalizationOffset) {
         for (int i = 0; i < positionsCount; ++i) {
@@ -68,15 +121,20 @@ public abstract class LZEncoder {
     }
 
     /**
-     * Gets the size of the LZ window buffer that needs to be allocated.
+     * Gets the size of the ring part of the LZ window buffer.
+     * <p>
+     * It is a multiple of 16 bytes. LZMA2 needs this because it uses
+     * the lowest bits from readPos to get the alignment of
+     * the uncompressed data, and wrapping the positions around must
+     * not change them.
      */
-    private static int getBufSize(
+    private static int getRingSize(
             int dictSize, int extraSizeBefore, int extraSizeAfter,
             int matchLenMax) {
         int keepSizeBefore = extraSizeBefore + dictSize;
         int keepSizeAfter = extraSizeAfter + matchLenMax;
         int reserveSize = Math.min(dictSize / 2 + (256 << 10), 512 << 20);
-        return keepSizeBefore + keepSizeAfter + reserveSize;
+        return (keepSizeBefore + keepSizeAfter + reserveSize + 15) & ~15;
     }
 
     /**
@@ -86,19 +144,90 @@ public abstract class LZEncoder {
     public static int getMemoryUsage(
             int dictSize, int extraSizeBefore, int extraSizeAfter,
             int matchLenMax, int mf) {
-        // Buffer size + a little extra
-        int m = getBufSize(dictSize, extraSizeBefore, extraSizeAfter,
-                matchLenMax) / 1024 + 10;
+        // Buffer size (the ring and its mirror) + a little extra
+        int m = (getRingSize(dictSize, extraSizeBefore, extraSizeAfter,
+                matchLenMax) + extraSizeAfter + matchLenMax) / 1024 + 10;
 
         switch (mf) {
+            case MF_HC3:
+                m += HC3.getMemoryUsage(dictSize);
+                break;
+
             case MF_HC4:
                 m += HC4.getMemoryUsage(dictSize);
                 break;
 
+            case MF_BT2:
+                m += BT2.getMemoryUsage(dictSize);
+                break;
+
+            case MF_BT3:
+                m += BT3.getMemoryUsage(dictSize);
+                break;
+
             case MF_BT4:
                 m += BT4.getMemoryUsage(dictSize);
                 break;
 
+            case MF_HS4:
+                m += HS4.getMemoryUsage(dictSize);
+                break;
+
+            default:
+                throw new IllegalArgumentException();
+        }
+
+        return m;
+    }
+
+    /**
+     * Gets approximate memory usage, as kibibytes, added on top of
+     * <code>getMemoryUsage</code> by running the match finder in its
+     * own thread.
+     */
+    public static int getPipelineMemoryUsage() {
+        return LZPipeline.getMemoryUsage();
+    }
+
+    /**
+     * Gets approximate memory usage, as kibibytes, of the state saved by
+     * <code>setResettablePresetDict</code> on top of
+     * <code>getMemoryUsage</code>.
+     */
+    public static int getPresetMemoryUsage(int dictSize, int presetSize,
+                                           int mf) {
+        int copySize = Math.min(presetSize, dictSize);
+        int m = copySize / 1024;
+
+        switch (mf) {
+            case MF_HC3:
+                m += Hash23.getPresetMemoryUsage(dictSize)
+                     + copySize / (1024 / 4);
+                break;
+
+            case MF_HC4:
+                m += Hash234.getPresetMemoryUsage(dictSize)
+                     + copySize / (1024 / 4);
+                break;
+
+            case MF_BT2:
+                m += Hash2.getPresetMemoryUsage() + copySize / (1024 / 8);
+                break;
+
+            case MF_BT3:
+                m += Hash23.getPresetMemoryUsage(dictSize)
+                     + copySize / (1024 / 8);
+                break;
+
+            case MF_BT4:
+                m += Hash234.getPresetMemoryUsage(dictSize)
+                     + copySize / (1024 / 8);
+                break;
+
+            case MF_HS4:
+                m += Hash4.getPresetMemoryUsage(dictSize);
+                break;
+
             default:
                 throw new IllegalArgumentException();
         }
@@ -135,18 +264,56 @@ public abstract class LZEncoder {
             int niceLen, int matchLenMax, int mf, int depthLimit,
             ArrayCache arrayCache) {
         switch (mf) {
+            case MF_HC3:
+                return new HC3(dictSize, extraSizeBefore, extraSizeAfter,
+                        niceLen, matchLenMax, depthLimit, arrayCache);
+
             case MF_HC4:
                 return new HC4(dictSize, extraSizeBefore, extraSizeAfter,
                         niceLen, matchLenMax, depthLimit, arrayCache);
 
+            case MF_BT2:
+                return new BT2(dictSize, extraSizeBefore, extraSizeAfter,
+                        niceLen, matchLenMax, depthLimit, arrayCache);
+
+            case MF_BT3:
+                return new BT3(dictSize, extraSizeBefore, extraSizeAfter,
+                        niceLen, matchLenMax, depthLimit, arrayCache);
+
             case MF_BT4:
                 return new BT4(dictSize, extraSizeBefore, extraSizeAfter,
                         niceLen, matchLenMax, depthLimit, arrayCache);
+
+            case MF_HS4:
+                return new HS4(dictSize, extraSizeBefore, extraSizeAfter,
+                        niceLen, matchLenMax, depthLimit, arrayCache);
         }
 
         throw new IllegalArgumentException();
     }
 
+    /**
+     * Creates a new LZEncoder whose match finder optionally runs in its
+     * own thread. See the other <code>getInstance</code> for the other
+     * parameters.
+     *
+     * @param       pipelined   run the match finder in its own thread;
+     *                          ignored if there is only one processor
+     */
+    public static LZEncoder getInstance(
+            int dictSize, int extraSizeBefore, int extraSizeAfter,
+            int niceLen, int matchLenMax, int mf, int depthLimit,
+            boolean pipelined, ArrayCache arrayCache) {
+        LZEncoder lz = getInstance(dictSize, extraSizeBefore, extraSizeAfter,
+                niceLen, matchLenMax, mf, depthLimit, arrayCache);
+
+        if (pipelined && Runtime.getRuntime().availableProcessors() > 1) {
+            return new LZPipeline(lz);
+        }
+
+        return lz;
+    }
+
     public void putArraysToCache(ArrayCache arrayCache) {
         arrayCache.putArray(buf);
     }
@@ -166,26 +333,91 @@ public abstract class LZEncoder {
             int copySize = Math.min(presetDict.length, dictSize);
             int offset = presetDict.length - copySize;
             System.arraycopy(presetDict, offset, buf, 0, copySize);
+            mirror(0, copySize);
             writePos += copySize;
             skip(copySize);
         }
     }
 
     /**
-     * Moves data from the end of the buffer to the beginning, discarding
-     * old data and making space for new input.
+     * Sets a preset dictionary that survives <code>reset()</code>. The
+     * window and the match finder state right after priming are saved,
+     * and <code>reset()</code> restores them instead of emptying the
+     * window, so the dictionary is hashed only once no matter how many
+     * times the encoder is reused. Like <code>setPresetDict</code>, this
+     * must be called before any data has been encoded.
      */
-    private void moveWindow() {
-        // Align the move to a multiple of 16 bytes. LZMA2 needs this
-        // because it uses the lowest bits from readPos to get the
-        // alignment of the uncompressed data.
-        int moveOffset = (readPos + 1 - keepSizeBefore) & ~15;
-        int moveSize = writePos - moveOffset;
-        System.arraycopy(buf, moveOffset, buf, 0, moveSize);
+    public void setResettablePresetDict(int dictSize, byte[] presetDict) {
+        setPresetDict(dictSize, presetDict);
+
+        presetWindow = Arrays.copyOf(buf, writePos);
+        presetReadPos = readPos;
+        presetReadLimit = readLimit;
+        presetPendingSize = pendingSize;
+        windowWrapped = false;
+        savePresetState();
+    }
 
-        readPos -= moveOffset;
-        readLimit -= moveOffset;
-        writePos -= moveOffset;
+    /**
+     * Returns true if <code>reset()</code> restores a preset dictionary
+     * set with <code>setResettablePresetDict</code>.
+     */
+    boolean hasPresetState() {
+        return presetWindow != null;
+    }
+
+    /**
+     * Saves the match finder state right after priming with a preset
+     * dictionary.
+     */
+    abstract void savePresetState();
+
+    /**
+     * Restores the match finder state saved by <code>savePresetState</code>.
+     */
+    abstract void restorePresetState();
+
+    /**
+     * Keeps the ring and its mirror in sync after <code>len</code> bytes
+     * have been written to <code>buf</code> at <code>pos</code>.
+     */
+    private void mirror(int pos, int len) {
+        int end = pos + len;
+
+        if (pos < keepSizeAfter) {
+            System.arraycopy(buf, pos, buf, ringSize + pos,
+                             Math.min(end, keepSizeAfter) - pos);
+        }
+
+        if (end > ringSize) {
+            int from = Math.max(pos, ringSize);
+            System.arraycopy(buf, from, buf, from - ringSize, end - from);
+            windowWrapped = true;
+        }
+    }
+
+    /**
+     * Wraps the positions around if the current byte of the encoder has
+     * passed the end of the ring and returns how many new bytes fit into
+     * the window.
+     */
+    private int prepareWindow() {
+        // The data at the wrapped positions is already in place at
+        // the beginning of the ring and in the mirror, so nothing is
+        // copied.
+        int encoderPos = readPos - encoderLag;
+        if (encoderPos >= ringSize) {
+            encoderPos -= ringSize;
+            readPos -= ringSize;
+            readLimit -= ringSize;
+            writePos -= ringSize;
+        }
+
+        // Don't overwrite the history that is still needed, nor write
+        // past the end of the mirror.
+        int limit = Math.min(ringSize + keepSizeAfter,
+                             encoderPos + 1 - keepSizeBefore + ringSize);
+        return Math.max(limit - writePos, 0);
     }
 
     /**
@@ -194,18 +426,12 @@ public abstract class LZEncoder {
     public int fillWindow(byte[] in, int off, int len) {
         assert !finishing;
 
-        // Move the sliding window if needed.
-        if (readPos >= bufSize - keepSizeAfter) {
-            moveWindow();
-        }
-
         // Try to fill the dictionary buffer. If it becomes full,
         // some of the input bytes may be left unused.
-        if (len > bufSize - writePos) {
-            len = bufSize - writePos;
-        }
+        len = Math.min(len, prepareWindow());
 
         System.arraycopy(in, off, buf, writePos, len);
+        mirror(writePos, len);
         writePos += len;
 
         // Set the new readLimit but only if there's enough data to allow
@@ -221,6 +447,30 @@ public abstract class LZEncoder {
         return len;
     }
 
+    /**
+     * Copies new data from a (heap or direct) ByteBuffer into
+     * the dictionary without an intermediate array. The position of
+     * <code>in</code> is advanced by the number of bytes copied.
+     *
+     * @return      the number of bytes copied
+     */
+    public int fillWindow(ByteBuffer in) {
+        assert !finishing;
+
+        int len = Math.min(in.remaining(), prepareWindow());
+        in.get(buf, writePos, len);
+        mirror(writePos, len);
+        writePos += len;
+
+        if (writePos >= keepSizeAfter) {
+            readLimit = writePos - keepSizeAfter;
+        }
+
+        processPendingBytes();
+
+        return len;
+    }
+
     /**
      * Process pending bytes remaining from preset dictionary initialization
      * or encoder flush operation.
@@ -280,7 +530,17 @@ public abstract class LZEncoder {
 
     public void copyUncompressed(OutputStream out, int backward, int len)
             throws IOException {
-        out.write(buf, readPos + 1 - backward, len);
+        int start = readPos + 1 - backward;
+
+        // The start may be before the wrapped positions.
+        if (start < 0) {
+            int tail = Math.min(-start, len);
+            out.write(buf, start + ringSize, tail);
+            start = 0;
+            len -= tail;
+        }
+
+        out.write(buf, start, len);
     }
 
     /**
@@ -303,6 +563,16 @@ public abstract class LZEncoder {
         return readPos;
     }
 
+    /**
+     * Gets the buffer index of the byte <code>delta</code> bytes before
+     * the current byte. <code>delta</code> must not exceed the history
+     * that is kept.
+     */
+    final int backPos(int delta) {
+        int pos = readPos - delta;
+        return pos < 0 ? pos + ringSize : pos;
+    }
+
     /**
      * Gets the byte from the given backward offset.
      * <p>
@@ -313,7 +583,7 @@ public abstract class LZEncoder {
      * This function is equivalent to <code>getByte(0, backward)</code>.
      */
     public int getByte(int backward) {
-        return buf[readPos - backward] & 0xFF;
+        return buf[backPos(backward)] & 0xFF;
     }
 
     /**
@@ -322,7 +592,7 @@ public abstract class LZEncoder {
      * one read bytes ahead of the current byte.
      */
     public int getByte(int forward, int backward) {
-        return buf[readPos + forward - backward] & 0xFF;
+        return buf[backPos(backward - forward)] & 0xFF;
     }
 
     /**
@@ -334,14 +604,8 @@ public abstract class LZEncoder {
      * @return length of the match; it is in the range [0, lenLimit]
      */
     public int getMatchLen(int dist, int lenLimit) {
-        int backPos = readPos - dist - 1;
-        int len = 0;
-
-        while (len < lenLimit && buf[readPos + len] == buf[backPos + len]) {
-            ++len;
-        }
-
-        return len;
+        return MatchLength.extend(buf, readPos, backPos(dist + 1),
+                                  0, lenLimit);
     }
 
     /**
@@ -354,15 +618,8 @@ public abstract class LZEncoder {
      * @return length of the match; it is in the range [0, lenLimit]
      */
     public int getMatchLen(int forward, int dist, int lenLimit) {
-        int curPos = readPos + forward;
-        int backPos = curPos - dist - 1;
-        int len = 0;
-
-        while (len < lenLimit && buf[curPos + len] == buf[backPos + len]) {
-            ++len;
-        }
-
-        return len;
+        return MatchLength.extend(buf, readPos + forward,
+                                  backPos(dist + 1 - forward), 0, lenLimit);
     }
 
     /**
@@ -431,6 +688,23 @@ public abstract class LZEncoder {
     public abstract void skip(int len);
 
     public void reset() {
+        if (presetWindow != null) {
+            // The preset dictionary is at the beginning of the buffer and
+            // new data is only appended after it unless the window wrapped.
+            if (windowWrapped) {
+                System.arraycopy(presetWindow, 0, buf, 0, presetWindow.length);
+                windowWrapped = false;
+                mirror(0, presetWindow.length);
+            }
+
+            this.readPos = presetReadPos;
+            this.readLimit = presetReadLimit;
+            this.finishing = false;
+            this.writePos = presetWindow.length;
+            this.pendingSize = presetPendingSize;
+            return;
+        }
+
         this.readPos = -1;
         this.readLimit = -1;
         this.finishing = false;
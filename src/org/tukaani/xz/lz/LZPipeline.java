@@ -0,0 +1,423 @@
+/*
+ * LZPipeline
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz.lz;
+
+import org.tukaani.xz.ArrayCache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs a match finder in its own thread ahead of the encoder.
+ * <p>
+ * The match finder thread calls <code>getMatches</code> at every position
+ * and appends the results to a single-producer single-consumer ring.
+ * <code>getMatches</code> and <code>skip</code> of this class only take
+ * them from there. All match finders update their hash tables, chains,
+ * and trees at a skipped position exactly like they do when finding
+ * matches there, so the output is identical to running the match finder
+ * in the encoder thread.
+ * <p>
+ * Only positions whose results cannot change with more input are
+ * processed ahead: those with at least <code>matchLenMax</code> bytes
+ * available, or all of them when flushing or finishing. Anything else,
+ * like the pending bytes after a flush, is handled in the encoder thread.
+ * The window is only modified while the match finder thread is stopped.
+ * This object keeps the position of the encoder in <code>readPos</code>,
+ * the match finder keeps its own.
+ */
+final class LZPipeline extends LZEncoder {
+    /**
+     * Size of the result ring as ints. A position takes one int for
+     * the number of matches and two for each match.
+     */
+    private static final int RING_SIZE = 1 << 16;
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    /**
+     * Fewer positions than this are cheaper to handle in the encoder
+     * thread than to hand over to the match finder thread.
+     */
+    private static final int RUN_MIN = 1 << 12;
+
+    /**
+     * Number of busy-wait rounds before yielding the processor.
+     */
+    private static final int SPINS = 1 << 8;
+
+    /**
+     * How long the match finder thread waits for the encoder to make
+     * space in a full ring before giving up. The encoder restarts it
+     * when needed, so an abandoned encoder doesn't keep the thread.
+     */
+    private static final long FULL_WAIT_NANOS = 10L * 1000 * 1000;
+
+    private static final ExecutorService EXECUTOR =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "lzma-match-finder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final LZEncoder mf;
+    private final Matches matches;
+    private final int entrySizeMax;
+    private final int[] ring = new int[RING_SIZE];
+    private final Runnable task = new Runnable() {
+        @Override
+        public void run() {
+            LZPipeline.this.run();
+        }
+    };
+
+    /**
+     * Ring index after the last published result. Written only by
+     * the match finder thread while it runs.
+     */
+    private volatile int head = 0;
+
+    /**
+     * Ring index of the first result not yet consumed. Written only by
+     * the encoder thread.
+     */
+    private volatile int tail = 0;
+
+    /**
+     * Encoder thread copies of <code>head</code> and <code>tail</code>.
+     */
+    private int knownHead = 0;
+    private int readIndex = 0;
+
+    private volatile boolean running = false;
+    private volatile boolean stopRequested = false;
+    private volatile Throwable failure = null;
+
+    /**
+     * Last position the match finder thread may process in its current
+     * run.
+     */
+    private int runLimit;
+
+    LZPipeline(LZEncoder mf) {
+        super(mf);
+        this.mf = mf;
+
+        // See BT4 and HS4.
+        matches = new Matches(Math.max(niceLen - 1, 1));
+        entrySizeMax = 1 + 2 * matches.len.length;
+    }
+
+    /**
+     * Gets approximate memory usage of the result ring as kibibytes.
+     */
+    static int getMemoryUsage() {
+        return RING_SIZE / (1024 / 4) + 10;
+    }
+
+    @Override
+    public void putArraysToCache(ArrayCache arrayCache) {
+        stop();
+        mf.putArraysToCache(arrayCache);
+    }
+
+    /**
+     * The match finder thread.
+     */
+    private void run() {
+        int h = head;
+        int t = tail;
+        int spins = 0;
+        long waitStart = 0;
+
+        try {
+            while (!stopRequested && mf.readPos < runLimit) {
+                if (RING_SIZE - (h - t) < entrySizeMax) {
+                    t = tail;
+
+                    if (RING_SIZE - (h - t) < entrySizeMax) {
+                        if (++spins == SPINS) {
+                            waitStart = System.nanoTime();
+                        } else if (spins > SPINS) {
+                            if (System.nanoTime() - waitStart
+                                    > FULL_WAIT_NANOS) {
+                                break;
+                            }
+
+                            Thread.yield();
+                        }
+
+                        continue;
+                    }
+                }
+
+                spins = 0;
+
+                Matches m = mf.getMatches();
+                ring[h++ & RING_MASK] = m.count;
+
+                for (int i = 0; i < m.count; ++i) {
+                    ring[h++ & RING_MASK] = m.len[i];
+                    ring[h++ & RING_MASK] = m.dist[i];
+                }
+
+                head = h;
+            }
+        } catch (Throwable e) {
+            failure = e;
+        } finally {
+            running = false;
+        }
+    }
+
+    /**
+     * Starts the match finder thread if there is enough work for it.
+     * It must not be running.
+     *
+     * @return true if the thread was started
+     */
+    private boolean start() {
+        // Pending bytes are run through the match finder when more input
+        // arrives, so nothing after them can be processed yet.
+        if (mf.pendingSize > 0) {
+            return false;
+        }
+
+        // readLimit is writePos - 1 only when flushing or finishing.
+        int last = mf.readLimit == mf.writePos - 1
+                   ? mf.writePos - 1
+                   : mf.writePos - matchLenMax;
+
+        if (last - mf.readPos < RUN_MIN) {
+            return false;
+        }
+
+        runLimit = last;
+        stopRequested = false;
+        running = true;
+        EXECUTOR.execute(task);
+        return true;
+    }
+
+    /**
+     * Stops the match finder thread and waits for it. The results already
+     * in the ring are kept.
+     */
+    private void stop() {
+        if (running) {
+            stopRequested = true;
+
+            while (running) {
+                Thread.yield();
+            }
+        }
+
+        Throwable e = failure;
+        if (e != null) {
+            failure = null;
+
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Waits until the results for the next position are in the ring.
+     *
+     * @return true if they are, false if the match finder thread has
+     *              stopped and the match finder must be run in this
+     *              thread instead
+     */
+    private boolean awaitResults() {
+        if (readIndex != knownHead) {
+            return true;
+        }
+
+        // The match finder thread might be waiting for space.
+        tail = readIndex;
+
+        for (int spins = 0; ; ++spins) {
+            knownHead = head;
+            if (readIndex != knownHead) {
+                return true;
+            }
+
+            if (!running) {
+                // Results may have been published just before stopping.
+                knownHead = head;
+                if (readIndex != knownHead) {
+                    return true;
+                }
+
+                // The ring is empty, so the match finder is at the same
+                // position as the encoder.
+                stop();
+                if (!start()) {
+                    return false;
+                }
+            } else if (spins > SPINS) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Copies the window state of the match finder, keeping the encoder
+     * the same number of positions behind it.
+     */
+    private void followWindow(int lag) {
+        readPos = mf.readPos - lag;
+        readLimit = mf.readLimit;
+        writePos = mf.writePos;
+        finishing = mf.finishing;
+    }
+
+    @Override
+    public void setPresetDict(int dictSize, byte[] presetDict) {
+        mf.setPresetDict(dictSize, presetDict);
+        followWindow(0);
+    }
+
+    @Override
+    public void setResettablePresetDict(int dictSize, byte[] presetDict) {
+        mf.setResettablePresetDict(dictSize, presetDict);
+        followWindow(0);
+    }
+
+    @Override
+    void savePresetState() {
+        // The match finder saves and restores its own state.
+    }
+
+    @Override
+    void restorePresetState() {
+    }
+
+    @Override
+    public int fillWindow(byte[] in, int off, int len) {
+        stop();
+
+        int lag = mf.readPos - readPos;
+        mf.encoderLag = lag;
+        len = mf.fillWindow(in, off, len);
+        followWindow(lag);
+
+        start();
+        return len;
+    }
+
+    @Override
+    public int fillWindow(ByteBuffer in) {
+        stop();
+
+        int lag = mf.readPos - readPos;
+        mf.encoderLag = lag;
+        int len = mf.fillWindow(in);
+        followWindow(lag);
+
+        start();
+        return len;
+    }
+
+    @Override
+    public void setFlushing() {
+        stop();
+
+        int lag = mf.readPos - readPos;
+        mf.setFlushing();
+        followWindow(lag);
+
+        start();
+    }
+
+    @Override
+    public void setFinishing() {
+        stop();
+
+        int lag = mf.readPos - readPos;
+        mf.setFinishing();
+        followWindow(lag);
+
+        start();
+    }
+
+    @Override
+    public Matches getMatches() {
+        ++readPos;
+
+        if (!awaitResults()) {
+            // The encoder may keep using the result after the match finder
+            // thread has been restarted, so it is always returned in
+            // a Matches of this class.
+            Matches m = mf.getMatches();
+            assert mf.readPos == readPos;
+
+            System.arraycopy(m.len, 0, matches.len, 0, m.count);
+            System.arraycopy(m.dist, 0, matches.dist, 0, m.count);
+            matches.count = m.count;
+            return matches;
+        }
+
+        int i = readIndex;
+        int count = ring[i++ & RING_MASK];
+
+        for (int j = 0; j < count; ++j) {
+            matches.len[j] = ring[i++ & RING_MASK];
+            matches.dist[j] = ring[i++ & RING_MASK];
+        }
+
+        matches.count = count;
+        readIndex = i;
+        tail = i;
+        return matches;
+    }
+
+    @Override
+    public void skip(int len) {
+        assert len >= 0;
+
+        while (len > 0 && awaitResults()) {
+            readIndex += 1 + 2 * ring[readIndex & RING_MASK];
+            ++readPos;
+            --len;
+        }
+
+        tail = readIndex;
+
+        if (len > 0) {
+            readPos += len;
+            mf.skip(len);
+            assert mf.readPos == readPos;
+        }
+    }
+
+    @Override
+    public void reset() {
+        stop();
+
+        head = 0;
+        tail = 0;
+        knownHead = 0;
+        readIndex = 0;
+
+        mf.encoderLag = 0;
+        mf.reset();
+        followWindow(0);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * MatchLength
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz.lz;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+/**
+ * Computes match lengths for the match finders and the encoders.
+ * <p>
+ * On Java 9 and later, long comparisons are done with
+ * <code>Arrays.mismatch(byte[], int, int, byte[], int, int)</code>,
+ * which the JIT compiles to a word-at-a-time (vectorized) loop.
+ * The method is looked up reflectively once so that the same class
+ * file still runs on older Java versions, where it falls back to
+ * comparing one byte at a time.
+ */
+final class MatchLength {
+    /**
+     * Number of bytes compared one at a time before switching to
+     * <code>Arrays.mismatch</code>. Most candidate matches end within
+     * a few bytes, and for those the plain loop is cheaper than
+     * the setup cost of the bulk comparison.
+     */
+    private static final int BYTEWISE_LEN = 8;
+
+    /**
+     * <code>Arrays.mismatch(byte[], int, int, byte[], int, int)</code>
+     * or null if it isn't available (Java 8 and older).
+     */
+    private static final MethodHandle MISMATCH = findMismatch();
+
+    private MatchLength() {}
+
+    private static MethodHandle findMismatch() {
+        try {
+            return MethodHandles.publicLookup().findStatic(
+                    Arrays.class, "mismatch",
+                    MethodType.methodType(int.class,
+                                          byte[].class, int.class, int.class,
+                                          byte[].class, int.class, int.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the bulk comparison is in use.
+     */
+    static boolean isWordAtATime() {
+        return MISMATCH != null;
+    }
+
+    /**
+     * Extends a match whose first <code>len</code> bytes are already
+     * known to be equal.
+     *
+     * @param       buf         the buffer containing both sequences
+     * @param       curPos      start of the current sequence
+     * @param       backPos     start of the earlier sequence
+     * @param       len         number of bytes already known to match;
+     *                          if it is not less than <code>lenLimit</code>,
+     *                          it is returned as is
+     * @param       lenLimit    don't compare beyond this many bytes
+     *
+     * @return      length of the match, at least <code>len</code>
+     *              and at most <code>max(len, lenLimit)</code>
+     */
+    static int extend(byte[] buf, int curPos, int backPos,
+                      int len, int lenLimit) {
+        int limit = Math.min(lenLimit, len + BYTEWISE_LEN);
+        while (len < limit && buf[curPos + len] == buf[backPos + len])
+            ++len;
+
+        if (len < limit || len >= lenLimit)
+            return len;
+
+        if (MISMATCH == null) {
+            while (len < lenLimit && buf[curPos + len] == buf[backPos + len])
+                ++len;
+
+            return len;
+        }
+
+        int mismatch;
+        try {
+            mismatch = (int) MISMATCH.invokeExact(
+                    buf, curPos + len, curPos + lenLimit,
+                    buf, backPos + len, backPos + lenLimit);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+
+        return mismatch < 0 ? lenLimit : len + mismatch;
+    }
+}
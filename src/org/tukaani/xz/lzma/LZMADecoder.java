@@ -18,7 +18,7 @@ import java.util.Objects;
 
 public final class LZMADecoder extends LZMACoder {
     private final LZDecoder lz;
-    private final RangeDecoder rc;
+    private RangeDecoder rc;
     private final LiteralDecoder literalDecoder;
     private final LengthDecoder matchLenDecoder = new LengthDecoder();
     private final LengthDecoder repLenDecoder = new LengthDecoder();
@@ -31,6 +31,15 @@ public final class LZMADecoder extends LZMACoder {
         reset();
     }
 
+    /**
+     * Replaces the range decoder. This allows reusing the same decoder
+     * state with different input sources. It must only be called
+     * between two streams.
+     */
+    public void setRangeDecoder(RangeDecoder rc) {
+        this.rc = rc;
+    }
+
     @Override
     public void reset() {
         super.reset();
@@ -45,7 +54,7 @@ public final class LZMADecoder extends LZMACoder {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         LZMADecoder that = (LZMADecoder) o;
-        return lz.equals(that.lz) && rc.equals(that.rc) && literalDecoder.equals(that.literalDecoder) && matchLenDecoder.equals(that.matchLenDecoder) && repLenDecoder.equals(that.repLenDecoder);
+        return lz.equals(that.lz) && Objects.equals(rc, that.rc) && literalDecoder.equals(that.literalDecoder) && matchLenDecoder.equals(that.matchLenDecoder) && repLenDecoder.equals(that.repLenDecoder);
     }
 
     @Override
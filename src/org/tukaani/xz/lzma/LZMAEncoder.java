@@ -22,6 +22,7 @@ import java.util.Arrays;
 public abstract class LZMAEncoder extends LZMACoder {
     public static final int MODE_FAST = 1;
     public static final int MODE_NORMAL = 2;
+    public static final int MODE_GREEDY = 3;
 
     /**
      * LZMA2 chunk is considered full when its uncompressed size exceeds
@@ -54,7 +55,7 @@ public abstract class LZMAEncoder extends LZMACoder {
     final LengthEncoder matchLenEncoder;
     final LengthEncoder repLenEncoder;
     final int niceLen;
-    private final RangeEncoder rc;
+    private RangeEncoder rc;
     private final int distSlotPricesSize;
     private final int[][] distSlotPrices;
     private final int[][] fullDistPrices
@@ -85,8 +86,18 @@ public abstract class LZMAEncoder extends LZMACoder {
 
     public static int getMemoryUsage(int mode, int dictSize,
                                      int extraSizeBefore, int mf) {
+        return getMemoryUsage(mode, dictSize, extraSizeBefore, mf, false);
+    }
+
+    public static int getMemoryUsage(int mode, int dictSize,
+                                     int extraSizeBefore, int mf,
+                                     boolean pipelined) {
         int m = 80;
 
+        if (pipelined) {
+            m += LZEncoder.getPipelineMemoryUsage();
+        }
+
         switch (mode) {
             case MODE_FAST:
                 m += LZMAEncoderFast.getMemoryUsage(
@@ -98,6 +109,11 @@ public abstract class LZMAEncoder extends LZMACoder {
                         dictSize, extraSizeBefore, mf);
                 break;
 
+            case MODE_GREEDY:
+                m += LZMAEncoderGreedy.getMemoryUsage(
+                        dictSize, extraSizeBefore, mf);
+                break;
+
             default:
                 throw new IllegalArgumentException();
         }
@@ -110,36 +126,61 @@ public abstract class LZMAEncoder extends LZMACoder {
             int dictSize, int extraSizeBefore,
             int niceLen, int mf, int depthLimit,
             ArrayCache arrayCache) {
+        return getInstance(rc, lc, lp, pb, mode, dictSize, extraSizeBefore,
+                niceLen, mf, depthLimit, false, arrayCache);
+    }
+
+    public static LZMAEncoder getInstance(
+            RangeEncoder rc, int lc, int lp, int pb, int mode,
+            int dictSize, int extraSizeBefore,
+            int niceLen, int mf, int depthLimit,
+            boolean pipelined, ArrayCache arrayCache) {
         switch (mode) {
             case MODE_FAST:
                 return new LZMAEncoderFast(rc, lc, lp, pb,
                         dictSize, extraSizeBefore,
                         niceLen, mf, depthLimit,
-                        arrayCache);
+                        pipelined, arrayCache);
 
             case MODE_NORMAL:
                 return new LZMAEncoderNormal(rc, lc, lp, pb,
                         dictSize, extraSizeBefore,
                         niceLen, mf, depthLimit,
-                        arrayCache);
+                        pipelined, arrayCache);
+
+            case MODE_GREEDY:
+                return new LZMAEncoderGreedy(rc, lc, lp, pb,
+                        dictSize, extraSizeBefore,
+                        niceLen, mf, depthLimit, REPS,
+                        pipelined, arrayCache);
         }
 
         throw new IllegalArgumentException();
     }
 
     public static LZMAEncoder getInstance(RangeEncoder rc, LZMA2Options options, ArrayCache arrayCache) {
+        return getInstance(rc, options, 0, arrayCache);
+    }
+
+    public static LZMAEncoder getInstance(RangeEncoder rc, LZMA2Options options, int extraSizeBefore, ArrayCache arrayCache) {
         switch (options.getMode()) {
             case MODE_FAST:
                 return new LZMAEncoderFast(rc, options.getLc(), options.getLp(), options.getPb(),
-                        options.getDictSize(), 0,
+                        options.getDictSize(), extraSizeBefore,
                         options.getNiceLen(), options.getMatchFinder(), options.getDepthLimit(),
-                        arrayCache);
+                        options.isPipelined(), arrayCache);
 
             case MODE_NORMAL:
                 return new LZMAEncoderNormal(rc, options.getLc(), options.getLp(), options.getPb(),
-                        options.getDictSize(), 0,
+                        options.getDictSize(), extraSizeBefore,
+                        options.getNiceLen(), options.getMatchFinder(), options.getDepthLimit(),
+                        options.isPipelined(), arrayCache);
+
+            case MODE_GREEDY:
+                return new LZMAEncoderGreedy(rc, options.getLc(), options.getLp(), options.getPb(),
+                        options.getDictSize(), extraSizeBefore,
                         options.getNiceLen(), options.getMatchFinder(), options.getDepthLimit(),
-                        arrayCache);
+                        options.getRepsTested(), options.isPipelined(), arrayCache);
         }
 
         throw new IllegalArgumentException();
@@ -208,6 +249,16 @@ public abstract class LZMAEncoder extends LZMACoder {
      */
     abstract int getNextSymbol();
 
+    /**
+     * Replaces the range encoder. This allows reusing the same encoder
+     * state with different output targets. It must only be called
+     * between two streams, that is, after <code>rc.finish()</code>
+     * and <code>reset()</code>.
+     */
+    public void setRangeEncoder(RangeEncoder rc) {
+        this.rc = rc;
+    }
+
     public LZEncoder getLZEncoder() {
         return lz;
     }
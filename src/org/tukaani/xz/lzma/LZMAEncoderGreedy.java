@@ -0,0 +1,99 @@
+/*
+ * LZMAEncoderGreedy
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz.lzma;
+
+import org.tukaani.xz.ArrayCache;
+import org.tukaani.xz.lz.LZEncoder;
+import org.tukaani.xz.lz.Matches;
+import org.tukaani.xz.rangecoder.RangeEncoder;
+
+/**
+ * Greedy parsing: the longest match at the current position is taken
+ * as is. Unlike <code>LZMAEncoderFast</code>, the next position is never
+ * examined for a better match, so every byte is looked up in the match
+ * finder at most once. Only the first <code>repsTested</code> repeated
+ * distances are tested at each position.
+ */
+final class LZMAEncoderGreedy extends LZMAEncoder {
+    private static final int EXTRA_SIZE_BEFORE = 1;
+    private static final int EXTRA_SIZE_AFTER = MATCH_LEN_MAX - 1;
+
+    private final int repsTested;
+
+    LZMAEncoderGreedy(RangeEncoder rc, int lc, int lp, int pb,
+                      int dictSize, int extraSizeBefore,
+                      int niceLen, int mf, int depthLimit, int repsTested,
+                      boolean pipelined, ArrayCache arrayCache) {
+        super(rc, LZEncoder.getInstance(dictSize,
+                Math.max(extraSizeBefore,
+                        EXTRA_SIZE_BEFORE),
+                EXTRA_SIZE_AFTER,
+                niceLen, MATCH_LEN_MAX,
+                mf, depthLimit, pipelined, arrayCache),
+                lc, lp, pb, dictSize, niceLen);
+
+        this.repsTested = repsTested;
+    }
+
+    static int getMemoryUsage(int dictSize, int extraSizeBefore, int mf) {
+        return LZEncoder.getMemoryUsage(
+                dictSize, Math.max(extraSizeBefore, EXTRA_SIZE_BEFORE),
+                EXTRA_SIZE_AFTER, MATCH_LEN_MAX, mf);
+    }
+
+    @Override
+    int getNextSymbol() {
+        // Nothing is read ahead, so the matches are always for
+        // the current byte.
+        Matches matches = getMatches();
+        back = -1;
+
+        int avail = Math.min(lz.getAvail(), MATCH_LEN_MAX);
+        if (avail < MATCH_LEN_MIN) {
+            return 1;
+        }
+
+        int bestRepLen = 0;
+        int bestRepIndex = 0;
+        for (int rep = 0; rep < repsTested; ++rep) {
+            int len = lz.getMatchLen(reps[rep], avail);
+            if (len > bestRepLen) {
+                bestRepIndex = rep;
+                bestRepLen = len;
+            }
+        }
+
+        int mainLen = 0;
+        int mainDist = 0;
+
+        if (matches.count > 0) {
+            mainLen = matches.len[matches.count - 1];
+            mainDist = matches.dist[matches.count - 1];
+
+            // A two-byte match with a long distance is more expensive
+            // than two literals.
+            if (mainLen == MATCH_LEN_MIN && mainDist >= 0x80) {
+                mainLen = 1;
+            }
+        }
+
+        if (bestRepLen >= MATCH_LEN_MIN && bestRepLen + 1 >= mainLen) {
+            back = bestRepIndex;
+            skip(bestRepLen - 1);
+            return bestRepLen;
+        }
+
+        if (mainLen < MATCH_LEN_MIN) {
+            return 1;
+        }
+
+        back = mainDist + REPS;
+        skip(mainLen - 1);
+        return mainLen;
+    }
+}
@@ -33,13 +33,13 @@ final class LZMAEncoderNormal extends LZMAEncoder {
     LZMAEncoderNormal(RangeEncoder rc, int lc, int lp, int pb,
                       int dictSize, int extraSizeBefore,
                       int niceLen, int mf, int depthLimit,
-                      ArrayCache arrayCache) {
+                      boolean pipelined, ArrayCache arrayCache) {
         super(rc, LZEncoder.getInstance(dictSize,
                 Math.max(extraSizeBefore,
                         EXTRA_SIZE_BEFORE),
                 EXTRA_SIZE_AFTER,
                 niceLen, MATCH_LEN_MAX,
-                mf, depthLimit, arrayCache),
+                mf, depthLimit, pipelined, arrayCache),
                 lc, lp, pb, dictSize, niceLen);
 
         for (int i = 0; i < OPTS; ++i) {
@@ -0,0 +1,67 @@
+/*
+ * RangeDecoderFromArray
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz.rangecoder;
+
+import org.tukaani.xz.CorruptedInputException;
+
+import java.io.IOException;
+
+/**
+ * Range decoder that reads straight from a byte array between
+ * <code>pos</code> and <code>limit</code>. Unlike
+ * <code>RangeDecoderFromStream</code> there is no per-byte
+ * <code>InputStream.read()</code> call, and truncated input is detected
+ * with an explicit bounds check.
+ */
+public final class RangeDecoderFromArray extends RangeDecoder {
+    private static final int INIT_SIZE = 5;
+
+    private byte[] buf;
+    private int pos;
+    private int limit;
+
+    /**
+     * Starts decoding a new range coded stream stored in
+     * <code>buf[pos, limit)</code>.
+     */
+    public void wrap(byte[] buf, int pos, int limit) throws IOException {
+        if (limit - pos < INIT_SIZE || buf[pos] != 0x00) {
+            throw new CorruptedInputException();
+        }
+
+        this.buf = buf;
+        this.limit = limit;
+        code = (buf[pos + 1] & 0xFF) << 24 | (buf[pos + 2] & 0xFF) << 16
+                | (buf[pos + 3] & 0xFF) << 8 | (buf[pos + 4] & 0xFF);
+        range = 0xFFFFFFFF;
+        this.pos = pos + INIT_SIZE;
+    }
+
+    /**
+     * Gets the position of the next unread input byte.
+     */
+    public int getPos() {
+        return pos;
+    }
+
+    public boolean isFinished() {
+        return code == 0;
+    }
+
+    @Override
+    public void normalize() throws IOException {
+        if ((range & TOP_MASK) == 0) {
+            if (pos == limit) {
+                throw new CorruptedInputException();
+            }
+
+            code = (code << SHIFT_BITS) | (buf[pos++] & 0xFF);
+            range <<= SHIFT_BITS;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * RangeDecoderFromByteBuffer
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz.rangecoder;
+
+import org.tukaani.xz.CorruptedInputException;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Range decoder that reads straight from a (heap or direct) ByteBuffer.
+ * The buffer is consumed from its position up to its limit and
+ * the position is advanced as the input is decoded.
+ */
+public final class RangeDecoderFromByteBuffer extends RangeDecoder {
+    private static final int INIT_SIZE = 5;
+
+    private ByteBuffer in;
+
+    /**
+     * Starts decoding a new range coded stream from <code>in</code>.
+     */
+    public void wrap(ByteBuffer in) throws IOException {
+        if (in.remaining() < INIT_SIZE || in.get() != 0x00) {
+            throw new CorruptedInputException();
+        }
+
+        this.in = in;
+        code = (in.get() & 0xFF) << 24 | (in.get() & 0xFF) << 16
+                | (in.get() & 0xFF) << 8 | (in.get() & 0xFF);
+        range = 0xFFFFFFFF;
+    }
+
+    public boolean isFinished() {
+        return code == 0;
+    }
+
+    @Override
+    public void normalize() throws IOException {
+        if ((range & TOP_MASK) == 0) {
+            try {
+                // If the input is truncated, this throws
+                // BufferUnderflowException.
+                code = (code << SHIFT_BITS) | (in.get() & 0xFF);
+                range <<= SHIFT_BITS;
+            } catch (BufferUnderflowException e) {
+                throw new CorruptedInputException();
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * RangeEncoderToArray
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz.rangecoder;
+
+/**
+ * Range encoder that writes straight into a caller-supplied byte array
+ * between <code>pos</code> and <code>limit</code>. Unlike
+ * <code>RangeEncoderToStream</code> there is no per-byte
+ * <code>OutputStream.write(int)</code> call. If the array becomes full,
+ * the remaining output is dropped and <code>isOverflow()</code>
+ * returns true instead of throwing
+ * <code>ArrayIndexOutOfBoundsException</code>.
+ */
+public final class RangeEncoderToArray extends RangeEncoder {
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    private boolean overflow;
+
+    public RangeEncoderToArray() {
+        reset();
+    }
+
+    /**
+     * Sets the array where the next range coded stream will be written.
+     */
+    public void wrap(byte[] buf, int pos, int limit) {
+        this.buf = buf;
+        this.pos = pos;
+        this.limit = limit;
+        this.overflow = false;
+    }
+
+    /**
+     * Gets the position after the last byte written.
+     */
+    public int getPos() {
+        return pos;
+    }
+
+    /**
+     * Returns true if the output didn't fit between
+     * <code>pos</code> and <code>limit</code>.
+     */
+    public boolean isOverflow() {
+        return overflow;
+    }
+
+    @Override
+    public void writeByte(int b) {
+        if (pos < limit) {
+            buf[pos++] = (byte) b;
+        } else {
+            overflow = true;
+        }
+    }
+}
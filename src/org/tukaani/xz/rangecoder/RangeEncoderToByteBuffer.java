@@ -0,0 +1,35 @@
+/*
+ * RangeEncoderToByteBuffer
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz.rangecoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Range encoder that writes straight into a (heap or direct) ByteBuffer
+ * starting at its position. If the buffer becomes full,
+ * <code>BufferOverflowException</code> is thrown.
+ */
+public final class RangeEncoderToByteBuffer extends RangeEncoder {
+    private ByteBuffer out;
+
+    public RangeEncoderToByteBuffer() {
+        reset();
+    }
+
+    /**
+     * Sets the buffer where the next range coded stream will be written.
+     */
+    public void wrap(ByteBuffer out) {
+        this.out = out;
+    }
+
+    @Override
+    public void writeByte(int b) {
+        out.put((byte) b);
+    }
+}